@@ -0,0 +1,53 @@
+-- SPDX-FileCopyrightText: 2026 NOI Techpark <digital@noi.bz.it>
+--
+-- SPDX-License-Identifier: CC0-1.0
+
+-- natural key of a transit event, needed for idempotent ingestion (A22_IDEMPOTENT=true)
+--
+-- existing duplicates (from overlapping follow iterations or repeated bulk runs)
+-- must be removed first; on a large table, run this during a maintenance window
+
+delete from a22.a22_traffic t
+using a22.a22_traffic d
+where t.stationcode = d.stationcode
+  and t."timestamp" = d."timestamp"
+  and t.distance = d.distance
+  and t.headway = d.headway
+  and t.length = d.length
+  and t.speed = d.speed
+  and t.class = d.class
+  and t.direction = d.direction
+  and t.ctid > d.ctid;
+
+-- run with psql (uses \gexec); an index cannot be built "concurrently" on a partitioned
+-- table, so there it is created "on only" the table and the index of each partition
+-- is built concurrently and attached (partitions created from then on get theirs
+-- automatically, and are skipped here)
+
+select 'create unique index concurrently if not exists a22_traffic_natural_key_ux
+    on a22.a22_traffic (stationcode, "timestamp", distance, headway, length, speed, class, direction)'
+where (select relkind from pg_class where oid = 'a22.a22_traffic'::regclass) = 'r'
+\gexec
+
+select 'create unique index if not exists a22_traffic_natural_key_ux
+    on only a22.a22_traffic (stationcode, "timestamp", distance, headway, length, speed, class, direction)'
+where (select relkind from pg_class where oid = 'a22.a22_traffic'::regclass) = 'p'
+\gexec
+
+select format('create unique index concurrently if not exists %I on %s (stationcode, "timestamp", distance, headway, length, speed, class, direction)',
+        c.relname || '_natural_key_ux', c.oid::regclass)
+from pg_inherits i
+join pg_class c on c.oid = i.inhrelid
+where i.inhparent = 'a22.a22_traffic'::regclass
+  and not exists (select 1 from pg_inherits ii join pg_index x on x.indexrelid = ii.inhrelid
+                  where ii.inhparent = 'a22.a22_traffic_natural_key_ux'::regclass and x.indrelid = c.oid)
+\gexec
+
+select format('alter index a22.a22_traffic_natural_key_ux attach partition %I.%I', n.nspname, c.relname || '_natural_key_ux')
+from pg_inherits i
+join pg_class c on c.oid = i.inhrelid
+join pg_namespace n on n.oid = c.relnamespace
+where i.inhparent = 'a22.a22_traffic'::regclass
+  and not exists (select 1 from pg_inherits ii join pg_index x on x.indexrelid = ii.inhrelid
+                  where ii.inhparent = 'a22.a22_traffic_natural_key_ux'::regclass and x.indrelid = c.oid)
+\gexec
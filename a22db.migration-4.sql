@@ -0,0 +1,70 @@
+-- SPDX-FileCopyrightText: 2026 NOI Techpark <digital@noi.bz.it>
+--
+-- SPDX-License-Identifier: CC0-1.0
+
+-- range partitioning of a22.a22_traffic on "timestamp"
+--
+-- the existing table is kept as it is and becomes the partition a22.a22_traffic_legacy,
+-- holding everything up to the end of the current month (UTC); the following partitions
+-- are created by the connector (A22_PARTITION_INTERVAL, see README.md)
+--
+-- stop the connector while this runs; rows with a null timestamp must be deleted first;
+-- a22db.migration-3.sql (if wanted) can be applied before or after
+
+-- the only index to build on the existing data, without blocking it
+create index concurrently if not exists a22_traffic_legacy_stationcode_timestamp_ix
+    on a22.a22_traffic (stationcode, "timestamp");
+
+-- the partition bound, computed once for the constraint and the attach below
+create temporary table a22_migration_boundary as
+    select extract(epoch from date_trunc('month', now() at time zone 'UTC') + interval '1 month')::bigint as boundary;
+
+-- with a matching check constraint in place, attaching does not need to scan the table;
+-- the constraint is added "not valid" (no scan) and validated separately, which scans
+-- the table but only takes a SHARE UPDATE EXCLUSIVE lock (reads and writes go on)
+do $$
+begin
+    execute format('alter table a22.a22_traffic add constraint a22_traffic_legacy_range check ("timestamp" is not null and "timestamp" < %s) not valid',
+        (select boundary from a22_migration_boundary));
+end $$;
+alter table a22.a22_traffic validate constraint a22_traffic_legacy_range;
+
+-- the short part, under an ACCESS EXCLUSIVE lock
+begin;
+
+alter table a22.a22_traffic rename to a22_traffic_legacy;
+alter index if exists a22.a22_traffic_timestamp_ix rename to a22_traffic_legacy_timestamp_ix;
+alter index if exists a22.a22_traffic_natural_key_ux rename to a22_traffic_legacy_natural_key_ux;
+
+create table a22.a22_traffic (like a22.a22_traffic_legacy including defaults) partition by range ("timestamp");
+
+-- "on only": the indexes of the existing data are attached below instead of being rebuilt
+create index a22_traffic_timestamp_ix on only a22.a22_traffic ("timestamp");
+create index a22_traffic_stationcode_timestamp_ix on only a22.a22_traffic (stationcode, "timestamp");
+
+do $$
+declare
+    boundary bigint := (select boundary from a22_migration_boundary);
+begin
+    execute format('alter table a22.a22_traffic attach partition a22.a22_traffic_legacy for values from (minvalue) to (%s)', boundary);
+    alter table a22.a22_traffic_legacy drop constraint a22_traffic_legacy_range;
+
+    if to_regclass('a22.a22_traffic_legacy_timestamp_ix') is null then
+        create index a22_traffic_legacy_timestamp_ix on a22.a22_traffic_legacy ("timestamp");
+    end if;
+    alter index a22.a22_traffic_timestamp_ix attach partition a22.a22_traffic_legacy_timestamp_ix;
+    alter index a22.a22_traffic_stationcode_timestamp_ix attach partition a22.a22_traffic_legacy_stationcode_timestamp_ix;
+
+    if to_regclass('a22.a22_traffic_legacy_natural_key_ux') is not null then
+        create unique index a22_traffic_natural_key_ux on only a22.a22_traffic
+            (stationcode, "timestamp", distance, headway, length, speed, class, direction);
+        alter index a22.a22_traffic_natural_key_ux attach partition a22.a22_traffic_legacy_natural_key_ux;
+    end if;
+end $$;
+
+-- the partial index on recent data is no longer needed, recent data lives in small partitions
+drop index if exists a22.a22_recent_data_ix;
+
+commit;
+
+drop table a22_migration_boundary;
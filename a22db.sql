@@ -59,10 +59,13 @@ CREATE TABLE a22.a22_traffic (
     direction integer,
     country int2,
     license_plate_initials text
-);
+) PARTITION BY RANGE ("timestamp");
 
-CREATE INDEX a22_traffic_stationcode_ix ON a22.a22_traffic USING btree (stationcode);
+-- the partitions are created by the connector as needed (see a22db.migration-4.sql)
 CREATE INDEX a22_traffic_timestamp_ix ON a22.a22_traffic USING btree ("timestamp");
+CREATE INDEX a22_traffic_stationcode_timestamp_ix ON a22.a22_traffic USING btree (stationcode, "timestamp");
+-- the natural key of an event, needed for idempotent ingestion (A22_IDEMPOTENT=true, see a22db.migration-3.sql)
+CREATE UNIQUE INDEX a22_traffic_natural_key_ux ON a22.a22_traffic USING btree (stationcode, "timestamp", distance, headway, length, speed, class, direction);
 
 
 -- a view on the list of sensors that adds a numeric code for the lane
@@ -0,0 +1,21 @@
+-- SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+--
+-- SPDX-License-Identifier: AGPL-3.0-or-later
+
+/*
+    2026-10-16
+    addition for resumable ingestion
+
+    for each coil, the last timestamp up to which all events have been stored,
+    updated in the same transaction as the events themselves
+
+    scope is 'follow' for follow mode or 'bulk:<start>:<end>' for a segment
+    of a bulk run
+ */
+create table a22.a22_checkpoint (
+    scope text not null,
+    coil text not null,
+    last_timestamp integer not null,
+    updated_when timestamptz not null default now(),
+    primary key (scope, coil)
+);
\ No newline at end of file
@@ -0,0 +1,112 @@
+#!/bin/bash
+
+# SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+#
+# SPDX-License-Identifier: CC0-1.0
+
+# End-to-end throughput test: runs the connector against the simulated A22 web
+# service (Simulator.java) and a local database, and reports the events stored
+# per second.
+#
+# usage: e2e.sh { month <year> <month> | interval <start_ts> <end_ts> | follow <seconds> }
+#
+# needs: ../target/app.jar and target/benchmarks.jar (see README.md), psql,
+# JDBC_URL for the connector and PG_URL (postgresql://...) for psql, pointing to
+# the same database initialized with the a22db_* scripts. The a22.a22_webservice
+# entry is pointed to the simulator while the test runs and restored afterwards.
+# E2E_RESET=1 empties a22.a22_traffic and a22.a22_checkpoint first; in month and
+# interval mode the test then fails unless every event the simulator sent has been
+# stored exactly once (see transiti_events_new in Simulator.java). Events of windows
+# answered with an injected 500 (SIM_500_RATE) are never sent, so they are lost,
+# not retried, and reported as transiti_events_suppressed.
+# The simulator is configured with the SIM_* variables (see Simulator.java), the
+# connector as usual (A22_*).
+
+set -e
+cd "$(dirname "$0")"
+
+: "${JDBC_URL:?JDBC_URL must be set}"
+: "${PG_URL:?PG_URL must be set}"
+export JDBC_URL
+export SIM_PORT=${SIM_PORT:-8089}
+
+case "$1" in
+    month)
+        fr=$(date -u -d "$2-$3-01" +%s)
+        to=$(( $(date -u -d "$2-$3-01 +1 month" +%s) - 1 ))
+        args=(month "$2" "$3")
+        ;;
+    interval)
+        fr=$2
+        to=$3
+        args=(interval "$2" "$3")
+        ;;
+    follow)
+        fr=0
+        to=2147483647
+        args=(follow)
+        duration=$2
+        ;;
+    *)
+        echo "usage: $0 { month <year> <month> | interval <start_ts> <end_ts> | follow <seconds> }" >&2
+        exit 1
+esac
+
+java -cp target/benchmarks.jar it.bz.noi.a22traffic.bench.Simulator > simulator.log 2>&1 &
+sim_pid=$!
+saved=$(psql "$PG_URL" -Atc "select url || '|' || username || '|' || password from a22.a22_webservice where id = 1")
+cleanup() {
+    kill $sim_pid 2>/dev/null || true
+    if [ -n "$saved" ]; then
+        IFS='|' read -r url user pass <<< "$saved"
+        psql "$PG_URL" -qc "update a22.a22_webservice set url = '$url', username = '$user', password = '$pass' where id = 1"
+    else
+        psql "$PG_URL" -qc "delete from a22.a22_webservice where id = 1"
+    fi
+}
+trap cleanup EXIT
+
+psql "$PG_URL" -qc "insert into a22.a22_webservice (id, url, username, password) values (1, 'http://localhost:$SIM_PORT', 'sim', 'sim')
+    on conflict (id) do update set url = excluded.url, username = excluded.username, password = excluded.password"
+if [ "$E2E_RESET" = "1" ]; then
+    psql "$PG_URL" -qc "truncate a22.a22_traffic; truncate a22.a22_checkpoint"
+fi
+until curl -s "http://localhost:$SIM_PORT/stats" > /dev/null; do
+    sleep 0.2
+done
+
+count() {
+    psql "$PG_URL" -Atc "select count(*) from a22.a22_traffic where \"timestamp\" between $fr and $to"
+}
+
+before=$(count)
+t0=$(date +%s.%N)
+if [ -n "$duration" ]; then
+    timeout "$duration" java -jar ../target/app.jar "${args[@]}" > e2e.log 2>&1 || true
+else
+    java -jar ../target/app.jar "${args[@]}" > e2e.log 2>&1
+fi
+t1=$(date +%s.%N)
+after=$(count)
+
+stats=$(curl -s "http://localhost:$SIM_PORT/stats")
+stat() {
+    echo "$stats" | awk -v k="$1" '$1 == k { n = $2 } END { print n + 0 }'
+}
+
+echo "simulator:"
+echo "$stats" | sed 's/^/  /'
+awk -v n=$((after - before)) -v t0="$t0" -v t1="$t1" -v mode="${args[*]}" \
+    'BEGIN { printf "e2e %s: %d events stored in %.1f s (%.0f events/s), log in e2e.log\n", mode, n, t1 - t0, n / (t1 - t0) }'
+echo "e2e: $(stat transiti_events_suppressed) events suppressed by injected 500 responses (lost)"
+
+# follow mode is stopped by a timeout, possibly with windows sent but not stored yet
+if [ "$E2E_RESET" = "1" ] && [ -z "$duration" ]; then
+    stored=$(psql "$PG_URL" -Atc "select count(*) from a22.a22_traffic")
+    sent=$(stat transiti_events_new)
+    if [ "$stored" -ne "$sent" ]; then
+        echo "e2e: FAILED, $stored events stored but $sent sent by the simulator" >&2
+        exit 1
+    fi
+    echo "e2e: all $sent events sent by the simulator have been stored"
+fi
@@ -0,0 +1,103 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic.bench;
+
+import it.bz.noi.a22traffic.RecentKeys;
+import it.bz.noi.a22traffic.SensorRegistry;
+import it.bz.noi.a22traffic.TransitBatch;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A22 traffic API connector benchmarks: the work between parsing and writing,
+ * i.e. station code handling, country lookup, natural keys and the duplicate
+ * filter of idempotent mode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MappingBenchmark {
+
+    @Param({ "10", "500", "5000" })
+    public int events;
+
+    private TransitBatch batch;
+    private List<HashMap<String, String>> sensors;
+    private String[] countries;
+    private RecentKeys recent;
+
+    @Setup
+    public void setup() throws IOException {
+        batch = Payloads.batch(events);
+        sensors = Payloads.sensors();
+        countries = TransitBatch.countryTable(Payloads.countries());
+        recent = new RecentKeys(365 * 86400); // remember the whole batch
+        recent.remember("6156", batch);
+    }
+
+    /**
+     * Group the sensor list by coil (done once per registry refresh).
+     */
+    @Benchmark
+    public Map<String, List<String>> registryIndex() {
+        return SensorRegistry.index(sensors);
+    }
+
+    /**
+     * Split the station codes of a batch into coil and sensor, as the ghost
+     * detection and the station timestamp bookkeeping do per event.
+     */
+    @Benchmark
+    public void stationcodeSplit(Blackhole bh) {
+        for (int i = 0; i < batch.size(); i++) {
+            bh.consume(batch.stationcode(i).split(":"));
+        }
+    }
+
+    @Benchmark
+    public void countryLookup(Blackhole bh) {
+        for (int i = 0; i < batch.size(); i++) {
+            bh.consume(TransitBatch.countryCode(countries, batch.country(i)));
+        }
+    }
+
+    @Benchmark
+    public long naturalKeys() {
+        long h = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            h ^= batch.key(i);
+        }
+        return h;
+    }
+
+    /**
+     * Idempotent mode: filter a batch retrieved again, all events are duplicates.
+     */
+    @Benchmark
+    public int duplicateFilter() {
+        TransitBatch copy = new TransitBatch(batch.size());
+        copy.addAll(batch);
+        return recent.filter("6156", copy);
+    }
+
+}
@@ -0,0 +1,68 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic.bench;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+/**
+ * A22 traffic API connector benchmarks: a JDBC connection that discards everything,
+ * so the writers can be measured without a database (parameter binding for
+ * InsertTrafficWriter, row encoding for CopyTrafficWriter).
+ *
+ * Every interface method returns another such proxy, false, 0 or null, except that
+ * executeBatch() returns an empty array and the COPY API returns a CopyIn that
+ * counts the bytes written to it (see bytes).
+ */
+public class NullJdbc {
+
+    /** bytes written to COPY so far */
+    public long bytes = 0;
+
+    public Connection connection() {
+        return proxy(Connection.class);
+    }
+
+    private <T> T proxy(Class<T> type) {
+        Object p = Proxy.newProxyInstance(NullJdbc.class.getClassLoader(), new Class<?>[] { type }, (self, method, args) -> {
+            switch (method.getName()) {
+                case "unwrap":
+                    return proxy((Class<?>) args[0]);
+                case "getCopyAPI":
+                    return new CopyManager(proxy(BaseConnection.class));
+                case "startCopy":
+                    return proxy(CopyIn.class);
+                case "writeToCopy":
+                    if (args.length == 3) {
+                        bytes += (Integer) args[2];
+                    }
+                    return null;
+                case "executeBatch":
+                    return new int[0];
+                case "hashCode":
+                    return System.identityHashCode(self);
+                case "equals":
+                    return self == args[0];
+                case "toString":
+                    return type.getSimpleName() + "(null)";
+                default:
+                    break;
+            }
+            Class<?> r = method.getReturnType();
+            if (r.isPrimitive() && r != void.class) {
+                return Array.get(Array.newInstance(r, 1), 0); // false or 0
+            } else if (r.isInterface()) {
+                return proxy(r);
+            }
+            return null;
+        });
+        return type.cast(p);
+    }
+
+}
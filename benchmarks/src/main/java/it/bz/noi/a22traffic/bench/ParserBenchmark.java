@@ -0,0 +1,77 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic.bench;
+
+import it.bz.noi.a22traffic.TransitBatch;
+import it.bz.noi.a22traffic.TransitParser;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.json.simple.JSONValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A22 traffic API connector benchmarks: parsing /traffico/transiti responses, from
+ * the UTF-8 bytes as read from the connection into the TransitBatch handed to the
+ * pipeline. json-simple, used before the streaming parser, is kept as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({ "10", "500", "5000" })
+    public int events;
+
+    private byte[] payload;
+    private TransitBatch batch;
+
+    @Setup
+    public void setup() throws IOException {
+        payload = Payloads.transiti(events).getBytes(StandardCharsets.UTF_8);
+        batch = new TransitBatch();
+    }
+
+    /**
+     * Follow mode and bulk mode: one response into a reused batch.
+     */
+    @Benchmark
+    public TransitBatch streaming() throws IOException {
+        batch.clear();
+        new TransitParser(new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8)).parse(batch);
+        return batch;
+    }
+
+    /**
+     * Bulk mode: one response handed to the pipeline in chunks, a new batch per chunk.
+     */
+    @Benchmark
+    public int streamingChunked() throws IOException {
+        TransitBatch chunk = new TransitBatch(1000);
+        return new TransitParser(new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8)).parse(chunk, 1000, b -> {
+        });
+    }
+
+    @Benchmark
+    public Object jsonSimple() {
+        return JSONValue.parse(new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,107 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic.bench;
+
+import it.bz.noi.a22traffic.TransitBatch;
+import it.bz.noi.a22traffic.TransitParser;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A22 traffic API connector benchmarks: /traffico/transiti payloads and metadata.
+ *
+ * Payloads are read from A22_BENCH_PAYLOAD_DIR/transiti-<events>.json if present
+ * (responses recorded e.g. with calls.http), otherwise generated with the same
+ * shape and value ranges as real responses. Typical sizes: 10 events (quiet coil,
+ * one follow window at night), 500 (follow window at day), 5000 (bulk window, or
+ * a peak hour of a busy coil).
+ */
+public class Payloads {
+
+    private static final String[] PLATES = { "AB", "BZ", "TN", "VR", "MI", "D-M", "A-I", "CH-", "", "", "" };
+
+    /**
+     * @return a /traffico/transiti response with the given number of events
+     */
+    public static String transiti(int events) throws IOException {
+        String dir = System.getenv("A22_BENCH_PAYLOAD_DIR");
+        if (dir != null && Files.exists(Paths.get(dir, "transiti-" + events + ".json"))) {
+            return new String(Files.readAllBytes(Paths.get(dir, "transiti-" + events + ".json")), StandardCharsets.UTF_8);
+        }
+        Random rnd = new Random(events);
+        StringBuilder sb = new StringBuilder(events * 330 + 64);
+        sb.append("{\"Traffico_GetTransitiResult\":[");
+        long ts = 1556668800L; // 2019-05-01
+        for (int i = 0; i < events; i++) {
+            ts += 1 + rnd.nextInt(10);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"__type\":\"Transito:#A22.Traffico.Model\"")
+                    .append(",\"assi\":").append(2 + rnd.nextInt(3))
+                    .append(",\"avanzamento\":").append(rnd.nextInt(20000) / 10.0)
+                    .append(",\"classe\":").append(1 + rnd.nextInt(8))
+                    .append(",\"controsenso\":").append(rnd.nextInt(500) == 0)
+                    .append(",\"data\":\"/Date(").append(ts).append(100 + rnd.nextInt(900)).append("+0200)/\"")
+                    .append(",\"direzione\":").append(rnd.nextInt(2))
+                    .append(",\"distanza\":").append(rnd.nextInt(20000) / 10.0)
+                    .append(",\"idNazionalita\":").append(rnd.nextInt(4) == 0 ? "null" : Integer.toString(1 + rnd.nextInt(40)))
+                    .append(",\"idspira\":6156")
+                    .append(",\"idsensore\":").append(1 + rnd.nextInt(4))
+                    .append(",\"lunghezza\":").append(30 + rnd.nextInt(170) / 10.0)
+                    .append(",\"targaIniziali\":\"").append(PLATES[rnd.nextInt(PLATES.length)]).append('"')
+                    .append(",\"velocita\":").append(60 + rnd.nextInt(900) / 10.0)
+                    .append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    /**
+     * @return the events of a /traffico/transiti response
+     */
+    public static TransitBatch batch(int events) throws IOException {
+        TransitBatch batch = new TransitBatch(events);
+        new TransitParser(new StringReader(transiti(events))).parse(batch);
+        return batch;
+    }
+
+    /**
+     * @return a sensor list as returned by Connector.getTrafficSensors(), about the size of the real one
+     */
+    public static List<HashMap<String, String>> sensors() {
+        List<HashMap<String, String>> sensors = new ArrayList<>();
+        for (int coil = 0; coil < 180; coil++) {
+            for (int sensor = 1; sensor <= 4; sensor++) {
+                HashMap<String, String> s = new HashMap<>();
+                s.put("stationcode", "A22:" + (5000 + coil * 7) + ":" + sensor);
+                s.put("name", "km " + coil + " sensor " + sensor);
+                s.put("pointprojection", "46." + coil + ",11." + sensor);
+                sensors.add(s);
+            }
+        }
+        return sensors;
+    }
+
+    /**
+     * @return a nationality dictionary as returned by Connector.getCountries()
+     */
+    public static Map<String, String> countries() {
+        Map<String, String> countries = new HashMap<>();
+        for (int i = 1; i <= 40; i++) {
+            countries.put(Integer.toString(i), "C" + i);
+        }
+        return countries;
+    }
+
+}
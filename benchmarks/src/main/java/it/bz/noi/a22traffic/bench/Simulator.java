@@ -0,0 +1,340 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import it.bz.noi.a22traffic.Config;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A22 traffic API connector benchmarks: stand-in for the A22 web service, to load
+ * test the connector end to end (see e2e.sh).
+ *
+ * Implements /token (POST and DELETE /token/{id}), /traffico/anagrafica,
+ * /traffico/nazionalita and /traffico/transiti with the JSON shapes the Connector
+ * expects. The events of a coil are a deterministic function of the coil and the
+ * second, so repeated requests return the same events and results can be checked.
+ * As the real service, /traffico/transiti answers 500 for windows without events.
+ *
+ * Settings (system properties or environment variables):
+ *
+ * SIM_PORT (8089), SIM_COILS (180), SIM_SENSORS (4 per coil),
+ * SIM_EVENTS_PER_HOUR (600 per coil on average, following a daily profile),
+ * SIM_LATENCY_MS (50) + SIM_LATENCY_PER_1000_MS (20 per 1000 events),
+ * SIM_401_RATE, SIM_500_RATE, SIM_503_RATE (0, fraction of transiti requests
+ * failing with that status), SIM_TOKEN_TTL_SEC (0 = tokens never expire),
+ * SIM_COMPRESSION (true: gzip or deflate responses if the client accepts them).
+ *
+ * GET /stats returns the counters as text: transiti_events counts all events sent
+ * (windows retrieved again included), transiti_events_new only those sent for the
+ * first time (what the connector must store), transiti_events_suppressed those of
+ * the windows answered with an injected 500.
+ *
+ * The connector takes a 500 for a window without events, as the real service sends
+ * them, so it does not retry such windows: SIM_500_RATE measures how much data is
+ * lost that way, not retry behaviour (use SIM_401_RATE and SIM_503_RATE for that).
+ */
+public class Simulator {
+
+    private static final Pattern SESSION = Pattern.compile("\"sessionId\"\\s*:\\s*\"([^\"]*)\"");
+    private static final Pattern COIL = Pattern.compile("\"idspira\"\\s*:\\s*(\\d+)");
+    private static final Pattern FROM = Pattern.compile("\"fromData\"\\s*:\\s*\"/Date\\((\\d{10})");
+    private static final Pattern TO = Pattern.compile("\"toData\"\\s*:\\s*\"/Date\\((\\d{10})");
+
+    private final int coils = Config.getInt("SIM_COILS", 180);
+    private final int sensors = Config.getInt("SIM_SENSORS", 4);
+    private final double events_per_hour = Config.getDouble("SIM_EVENTS_PER_HOUR", 600);
+    private final long latency_ms = Config.getLong("SIM_LATENCY_MS", 50);
+    private final long latency_per_1000_ms = Config.getLong("SIM_LATENCY_PER_1000_MS", 20);
+    private final double rate_401 = Config.getDouble("SIM_401_RATE", 0);
+    private final double rate_500 = Config.getDouble("SIM_500_RATE", 0);
+    private final double rate_503 = Config.getDouble("SIM_503_RATE", 0);
+    private final long token_ttl_ms = Config.getLong("SIM_TOKEN_TTL_SEC", 0) * 1000;
+    private final boolean compression = Config.getBoolean("SIM_COMPRESSION", true);
+
+    private final Map<String, Long> tokens = new ConcurrentHashMap<>(); // token -> issued at
+    private final Map<String, AtomicLong> stats = new ConcurrentHashMap<>();
+    private final Map<Integer, TreeMap<Long, Long>> delivered = new ConcurrentHashMap<>(); // coil -> disjoint intervals fr -> to sent
+
+    public static void main(String[] args) throws IOException {
+        new Simulator().start(Config.getInt("SIM_PORT", 8089));
+    }
+
+    public void start(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 128);
+        server.createContext("/token", this::token);
+        server.createContext("/traffico/anagrafica", ex -> handle(ex, this::anagrafica));
+        server.createContext("/traffico/nazionalita", ex -> handle(ex, this::nazionalita));
+        server.createContext("/traffico/transiti", ex -> handle(ex, this::transiti));
+        server.createContext("/stats", ex -> {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, AtomicLong> e : new TreeMap<>(stats).entrySet()) {
+                sb.append(e.getKey()).append(' ').append(e.getValue().get()).append('\n');
+            }
+            respond(ex, 200, sb.toString());
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        System.out.println("simulator: listening on port " + port + ", " + coils + " coils, " + sensors + " sensors each, "
+                + events_per_hour + " events/h per coil");
+    }
+
+    private interface Handler {
+        void handle(HttpExchange ex, String body) throws Exception;
+    }
+
+    private void count(String key, long n) {
+        stats.computeIfAbsent(key, k -> new AtomicLong()).addAndGet(n);
+    }
+
+    private static String read(HttpExchange ex) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        InputStream in = ex.getRequestBody();
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private void respond(HttpExchange ex, int status, String body) throws IOException {
+        count("http_" + status, 1);
+        byte[] b = body.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        String accept = ex.getRequestHeaders().getFirst("Accept-Encoding");
+        if (compression && accept != null && b.length > 0) {
+            String encoding = accept.contains("gzip") ? "gzip" : accept.contains("deflate") ? "deflate" : null;
+            if (encoding != null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(b.length / 4);
+                try (OutputStream z = encoding.equals("gzip") ? new GZIPOutputStream(out) : new DeflaterOutputStream(out, new Deflater())) {
+                    z.write(b);
+                }
+                b = out.toByteArray();
+                ex.getResponseHeaders().set("Content-Encoding", encoding);
+            }
+        }
+        count("bytes_sent", b.length);
+        ex.sendResponseHeaders(status, b.length == 0 ? -1 : b.length);
+        if (b.length > 0) {
+            try (OutputStream os = ex.getResponseBody()) {
+                os.write(b);
+            }
+        }
+        ex.close();
+    }
+
+    private void token(HttpExchange ex) throws IOException {
+        read(ex);
+        String path = ex.getRequestURI().getPath();
+        if ("DELETE".equals(ex.getRequestMethod()) && path.startsWith("/token/")) {
+            boolean removed = tokens.remove(path.substring("/token/".length())) != null;
+            respond(ex, 200, "{\"RemoveSubscribeResult\":" + removed + "}");
+            return;
+        }
+        String token = UUID.randomUUID().toString();
+        tokens.put(token, System.currentTimeMillis());
+        count("tokens", 1);
+        respond(ex, 200, "{\"SubscribeResult\":{\"sessionId\":\"" + token + "\"}}");
+    }
+
+    /**
+     * Check the session, then let the handler answer.
+     */
+    private void handle(HttpExchange ex, Handler handler) throws IOException {
+        try {
+            String body = read(ex);
+            Matcher m = SESSION.matcher(body);
+            Long issued = m.find() ? tokens.get(m.group(1)) : null;
+            if (issued == null || (token_ttl_ms > 0 && System.currentTimeMillis() - issued > token_ttl_ms)) {
+                respond(ex, 401, "");
+                return;
+            }
+            handler.handle(ex, body);
+        } catch (Exception e) {
+            e.printStackTrace();
+            respond(ex, 400, "");
+        }
+    }
+
+    private void anagrafica(HttpExchange ex, String body) throws IOException {
+        StringBuilder sb = new StringBuilder("{\"Traffico_GetAnagraficaResult\":[");
+        for (int c = 0; c < coils; c++) {
+            if (c > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"descrizione\":\"Simulated coil ").append(c).append("\",\"idspira\":").append(coil(c))
+                    .append(",\"latitudine\":").append(45.5 + c * 0.005).append(",\"longitudine\":").append(11.0 + c * 0.002)
+                    .append(",\"metro\":").append(c * 1300).append(",\"sensori\":[");
+            for (int s = 1; s <= sensors; s++) {
+                if (s > 1) {
+                    sb.append(',');
+                }
+                sb.append("{\"idcorsia\":").append((s - 1) % 2 + 1).append(",\"iddirezione\":").append(s <= sensors / 2 ? 1 : 2)
+                        .append(",\"idsensore\":").append(s).append('}');
+            }
+            sb.append("]}");
+        }
+        respond(ex, 200, sb.append("]}").toString());
+    }
+
+    private void nazionalita(HttpExchange ex, String body) throws IOException {
+        String[] codes = { "I", "D", "A", "CH", "F", "NL", "PL", "CZ", "H", "SLO" };
+        StringBuilder sb = new StringBuilder("{\"Traffico_GetNazionalitaResult\":[");
+        for (int i = 0; i < codes.length; i++) {
+            sb.append(i > 0 ? "," : "").append("{\"Id\":").append(i + 1).append(",\"Sigla\":\"").append(codes[i]).append("\"}");
+        }
+        respond(ex, 200, sb.append("]}").toString());
+    }
+
+    private static int coil(int c) {
+        return 5000 + c * 7;
+    }
+
+    private void transiti(HttpExchange ex, String body) throws IOException, InterruptedException {
+        Matcher mc = COIL.matcher(body);
+        Matcher mf = FROM.matcher(body);
+        Matcher mt = TO.matcher(body);
+        if (!mc.find() || !mf.find() || !mt.find()) {
+            throw new IllegalArgumentException("malformed request: " + body);
+        }
+        int coil = Integer.parseInt(mc.group(1));
+        long fr = Long.parseLong(mf.group(1));
+        long to = Math.min(Long.parseLong(mt.group(1)), Instant.now().getEpochSecond());
+        count("transiti_requests", 1);
+
+        double r = ThreadLocalRandom.current().nextDouble();
+        if (r < rate_401 + rate_503 + rate_500) {
+            Thread.sleep(latency_ms);
+            if (r >= rate_401 + rate_503) {
+                count("transiti_events_suppressed", events(coil, fr, to));
+            }
+            respond(ex, r < rate_401 ? 401 : r < rate_401 + rate_503 ? 503 : 500, "");
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder("{\"Traffico_GetTransitiResult\":[");
+        int n = 0;
+        for (long ts = fr; ts <= to; ts++) {
+            long h = mix(coil * 0x9E3779B97F4A7C15L + ts);
+            int k = events(coil, ts);
+            for (int i = 0; i < k; i++) {
+                long e = mix(h + i);
+                sb.append(n++ > 0 ? "," : "").append("{\"__type\":\"Transito:#A22.Traffico.Model\"")
+                        .append(",\"assi\":").append(2 + (e & 3))
+                        .append(",\"avanzamento\":").append(((e >>> 8) & 0x3fff) / 10.0)
+                        .append(",\"classe\":").append(1 + ((e >>> 24) & 7))
+                        .append(",\"controsenso\":").append(((e >>> 30) & 1023) == 0)
+                        .append(",\"data\":\"/Date(").append(ts).append(String.format("%03d", i % 1000)).append("+0100)/\"")
+                        .append(",\"direzione\":").append((e >>> 40) & 1)
+                        .append(",\"distanza\":").append(((e >>> 42) & 0x3fff) / 10.0)
+                        .append(",\"idNazionalita\":").append(((e >>> 56) & 3) == 0 ? "null" : Long.toString(1 + ((e >>> 58) % 10)))
+                        .append(",\"idsensore\":").append(1 + Math.floorMod(e >>> 20, sensors))
+                        .append(",\"idspira\":").append(coil)
+                        .append(",\"lunghezza\":").append(30 + ((e >>> 12) & 0xff) / 10.0)
+                        .append(",\"targaIniziali\":\"").append(((e >>> 48) & 1) == 0 ? "" : "BZ").append('"')
+                        .append(",\"velocita\":").append(60 + ((e >>> 16) & 0x3ff) / 10.0)
+                        .append('}');
+            }
+        }
+        count("transiti_events", n);
+        count("transiti_events_new", deliver(coil, fr, to));
+        Thread.sleep(latency_ms + latency_per_1000_ms * n / 1000);
+        if (n == 0) {
+            respond(ex, 500, ""); // as the real service, for windows without events
+            return;
+        }
+        respond(ex, 200, sb.append("]}").toString());
+    }
+
+    /**
+     * @return the number of events of a coil in a second
+     */
+    private int events(int coil, long ts) {
+        double lambda = events_per_hour / 3600 * profile(ts);
+        long h = mix(coil * 0x9E3779B97F4A7C15L + ts);
+        return (int) lambda + ((h >>> 11) * 0x1.0p-53 < lambda - (int) lambda ? 1 : 0);
+    }
+
+    /**
+     * @return the number of events of a coil from fr to to (inclusive)
+     */
+    private long events(int coil, long fr, long to) {
+        long n = 0;
+        for (long ts = fr; ts <= to; ts++) {
+            n += events(coil, ts);
+        }
+        return n;
+    }
+
+    /**
+     * Record that the window [fr, to] of a coil has been sent.
+     *
+     * @return the number of events in the seconds not sent before
+     */
+    private long deliver(int coil, long fr, long to) {
+        TreeMap<Long, Long> covered = delivered.computeIfAbsent(coil, k -> new TreeMap<>());
+        synchronized (covered) {
+            long n = 0;
+            for (long ts = fr; ts <= to;) {
+                Map.Entry<Long, Long> e = covered.floorEntry(ts);
+                if (e != null && e.getValue() >= ts) {
+                    ts = e.getValue() + 1;
+                    continue;
+                }
+                Long next = covered.higherKey(ts);
+                long end = next == null ? to : Math.min(to, next - 1);
+                n += events(coil, ts, end);
+                ts = end + 1;
+            }
+            // merge [fr, to] with the intervals it overlaps or touches
+            Map.Entry<Long, Long> e = covered.floorEntry(fr);
+            if (e != null && e.getValue() >= fr - 1) {
+                fr = e.getKey();
+                to = Math.max(to, e.getValue());
+            }
+            for (Map.Entry<Long, Long> x = covered.ceilingEntry(fr); x != null && x.getKey() <= to + 1; x = covered.ceilingEntry(fr)) {
+                to = Math.max(to, x.getValue());
+                covered.remove(x.getKey());
+            }
+            covered.put(fr, to);
+            return n;
+        }
+    }
+
+    /**
+     * Daily traffic profile (UTC hour), averaging about 1.
+     */
+    private static double profile(long ts) {
+        long hour = ts / 3600 % 24;
+        return 1 + 0.8 * Math.sin(2 * Math.PI * (hour - 8) / 24.0);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+}
@@ -0,0 +1,77 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic.bench;
+
+import it.bz.noi.a22traffic.CopyTrafficWriter;
+import it.bz.noi.a22traffic.InsertTrafficWriter;
+import it.bz.noi.a22traffic.TrafficWriter;
+import it.bz.noi.a22traffic.TransitBatch;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A22 traffic API connector benchmarks: the client side cost of the writers
+ * (A22_WRITER), against a connection that discards everything (see NullJdbc).
+ * The database side is not measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriterBenchmark {
+
+    @Param({ "10", "500", "5000" })
+    public int events;
+
+    private TransitBatch batch;
+    private Connection db;
+    private TrafficWriter insert;
+    private TrafficWriter copy;
+    private TrafficWriter copy_binary;
+
+    @Setup
+    public void setup() throws IOException {
+        batch = Payloads.batch(events);
+        db = new NullJdbc().connection();
+        String[] countries = TransitBatch.countryTable(Payloads.countries());
+        insert = new InsertTrafficWriter(countries);
+        copy = new CopyTrafficWriter(countries, false);
+        copy_binary = new CopyTrafficWriter(countries, true);
+    }
+
+    /**
+     * Parameter binding loop of the insert writer (addBatch per row).
+     */
+    @Benchmark
+    public void insertBinding() throws SQLException, IOException {
+        insert.write(db, batch, TrafficWriter.TABLE);
+    }
+
+    @Benchmark
+    public void copyText() throws SQLException, IOException {
+        copy.write(db, batch, TrafficWriter.TABLE);
+    }
+
+    @Benchmark
+    public void copyBinary() throws SQLException, IOException {
+        copy_binary.write(db, batch, TrafficWriter.TABLE);
+    }
+
+}
@@ -0,0 +1,174 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A22 traffic API connector: adaptive limit on the requests made to the A22 web
+ * service, shared by all threads (and all Connector instances).
+ *
+ * Both the number of concurrent requests and the pause between the start of two
+ * requests follow AIMD (additive increase, multiplicative decrease): every request
+ * answered without signs of congestion raises the concurrency limit by 1/limit
+ * (about one per round of requests) and halves the pause, every sign of congestion
+ * halves the limit and doubles the pause. Signs of congestion are 429 and 502..504
+ * responses, I/O errors (including timeouts) and a time to the response status
+ * well above the usual one (A22_LIMIT_LATENCY_FACTOR times the baseline).
+ *
+ * The limit stays between A22_LIMIT_MIN and A22_LIMIT_MAX, starting at A22_LIMIT_INITIAL.
+ *
+ * Waiting is done on a ReentrantLock rather than a monitor, so virtual threads (see
+ * VirtualThreads) waiting for their turn do not pin their carrier threads.
+ */
+public class AdaptiveLimiter {
+
+    /**
+     * What a finished request tells about the state of the web service.
+     */
+    public enum Signal {
+        /** answered normally */
+        OK,
+        /** overloaded or failing */
+        CONGESTION,
+        /** no information (e.g. 401) */
+        NEUTRAL
+    }
+
+    private static final long MAX_PAUSE_MS = 5000;
+    private static final long MIN_LATENCY_MS = 200; // below this, latency is never congestion
+
+    private static final AdaptiveLimiter shared = new AdaptiveLimiter(Config.getInt("A22_LIMIT_MIN", 1),
+            Config.getInt("A22_LIMIT_MAX", 64), Config.getInt("A22_LIMIT_INITIAL", 8),
+            Config.getDouble("A22_LIMIT_LATENCY_FACTOR", 3));
+
+    private final int min;
+    private final int max;
+    private final double latency_factor;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    // all guarded by lock
+    private double limit;
+    private int inflight = 0;
+    private long pause_ms = 0;
+    private long next_start = 0;
+    private double baseline_ms = -1;
+    private long last_decrease = 0;
+    private long requests = 0;
+    private long congestions = 0;
+
+    public AdaptiveLimiter(int min, int max, int initial, double latency_factor) {
+        if (min < 1 || max < min) {
+            throw new RuntimeException("invalid limiter bounds: min " + min + ", max " + max);
+        }
+        this.min = min;
+        this.max = max;
+        this.limit = Math.max(min, Math.min(max, initial));
+        this.latency_factor = latency_factor;
+    }
+
+    public static AdaptiveLimiter shared() {
+        return shared;
+    }
+
+    /**
+     * Wait until a request may be started. Every acquire() must be followed by a release().
+     */
+    public void acquire() throws InterruptedException {
+        long sleep;
+        lock.lockInterruptibly();
+        try {
+            while (inflight >= (int) limit) {
+                released.await();
+            }
+            inflight++;
+            long now = System.currentTimeMillis();
+            long start = Math.max(now, next_start);
+            next_start = start + pause_ms;
+            sleep = start - now;
+        } finally {
+            lock.unlock();
+        }
+        if (sleep > 0) {
+            try {
+                Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+                release(Signal.NEUTRAL, 0);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @param signal     the outcome of the request
+     * @param latency_ms time until the response status was received (for OK)
+     */
+    public void release(Signal signal, long latency_ms) {
+        lock.lock();
+        try {
+            update(signal, latency_ms);
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void update(Signal signal, long latency_ms) {
+        inflight--;
+        requests++;
+        if (signal == Signal.OK && baseline_ms > 0 && latency_ms > MIN_LATENCY_MS && latency_ms > latency_factor * baseline_ms) {
+            signal = Signal.CONGESTION;
+        }
+        long now = System.currentTimeMillis();
+        switch (signal) {
+            case OK:
+                baseline_ms = baseline_ms < 0 ? latency_ms : 0.9 * baseline_ms + 0.1 * latency_ms;
+                limit = Math.min(max, limit + 1 / limit);
+                pause_ms = pause_ms / 2;
+                break;
+            case CONGESTION:
+                congestions++;
+                // requests in flight when the congestion started report it too, react once per round trip
+                if (now - last_decrease > Math.max(1000, 2 * baseline_ms)) {
+                    last_decrease = now;
+                    limit = Math.max(min, limit / 2);
+                    pause_ms = Math.min(MAX_PAUSE_MS, Math.max(25, 2 * pause_ms));
+                    System.out.println("limiter: congestion, limit now " + (int) limit + ", pause " + pause_ms + " ms");
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return the current concurrency limit
+     */
+    public double limit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the current state for log output
+     */
+    public String stats() {
+        lock.lock();
+        try {
+            return "limit " + (int) limit + " (" + min + ".." + max + "), pause " + pause_ms + " ms, latency baseline "
+                    + Math.round(baseline_ms) + " ms, " + congestions + " congestion signals in " + requests + " requests";
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
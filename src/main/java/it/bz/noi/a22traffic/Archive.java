@@ -0,0 +1,258 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A22 traffic API connector: archive of the raw /traffico/transiti responses
+ * (A22_ARCHIVE_DIR, disabled if not set), to reload data with the "replay" mode
+ * (see Replay) instead of retrieving it again.
+ *
+ * Each response is gzipped as it is parsed, to a temporary file that is moved to
+ * <yyyy-MM>/<coil>/<fr>-<to>.json.gz (month of fr, UTC) once the whole response has
+ * been parsed, so the archive never contains partial responses. A window retrieved
+ * again replaces the earlier response. Windows without events are not archived.
+ *
+ * The country list, needed to decode the responses, is kept in countries.properties.
+ *
+ * Writing the archive never fails a request: on errors the response is just not
+ * archived (and the error logged).
+ */
+public class Archive {
+
+    public static final String COUNTRIES = "countries.properties";
+
+    // <fr>-<to>.json.gz
+    public static final Pattern FILE = Pattern.compile("(\\d+)-(\\d+)\\.json\\.gz");
+
+    private static final DateTimeFormatter MONTH = DateTimeFormatter.ofPattern("yyyy-MM").withZone(ZoneOffset.UTC);
+
+    private static final Metrics.Counter archived = Metrics.counter("a22_archive_responses_total", "Transit events responses written to the archive");
+    private static final Metrics.Counter errors = Metrics.counter("a22_archive_errors_total", "Transit events responses that could not be written to the archive");
+
+    private static final Archive shared = new Archive(Config.getString("A22_ARCHIVE_DIR", ""));
+
+    private final Path dir;
+
+    /**
+     * @param dir the archive directory, empty to disable archiving
+     */
+    public Archive(String dir) {
+        this.dir = dir.isEmpty() ? null : Paths.get(dir);
+    }
+
+    /**
+     * @return the instance used by all Connectors
+     */
+    public static Archive shared() {
+        return shared;
+    }
+
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    /**
+     * @return the file of a coil's window in an archive
+     */
+    public static Path path(Path root, String coil, long fr, long to) {
+        return root.resolve(MONTH.format(Instant.ofEpochSecond(fr))).resolve(coil).resolve(fr + "-" + to + ".json.gz");
+    }
+
+    /**
+     * Start archiving a response, or return null if archiving is disabled or the
+     * file cannot be created.
+     */
+    public Entry open(String coil, long fr, long to) {
+        if (dir == null) {
+            return null;
+        }
+        Path target = path(dir, coil, fr, to);
+        try {
+            Files.createDirectories(target.getParent());
+            Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+            return new Entry(target, tmp);
+        } catch (IOException e) {
+            errors.inc();
+            System.out.println("archive: cannot create " + target + " (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+
+    /**
+     * Save the country list (as returned by Connector.getCountries()).
+     */
+    public void countries(Map<String, String> countries) {
+        if (dir == null) {
+            return;
+        }
+        Properties p = new Properties();
+        p.putAll(countries);
+        Path target = dir.resolve(COUNTRIES);
+        try {
+            Files.createDirectories(dir);
+            Path tmp = Files.createTempFile(dir, COUNTRIES, ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                p.store(out, "A22 nationalities by id");
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            errors.inc();
+            System.out.println("archive: cannot write " + target + " (" + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * Load the country list saved in the given directory of an archive or in one of
+     * its parents.
+     *
+     * @return the country codes by id
+     *
+     * @throws IOException if there is no country list
+     */
+    public static Map<String, String> loadCountries(Path dir) throws IOException {
+        for (Path d = dir.toAbsolutePath(); d != null; d = d.getParent()) {
+            Path f = d.resolve(COUNTRIES);
+            if (Files.isRegularFile(f)) {
+                Properties p = new Properties();
+                try (InputStream in = Files.newInputStream(f)) {
+                    p.load(in);
+                }
+                Map<String, String> countries = new HashMap<>();
+                for (String id : p.stringPropertyNames()) {
+                    countries.put(id, p.getProperty(id));
+                }
+                return countries;
+            }
+        }
+        throw new IOException("no " + COUNTRIES + " found in " + dir + " or its parents");
+    }
+
+    /**
+     * A response being archived.
+     */
+    public static class Entry implements AutoCloseable {
+
+        private final Path target;
+        private final Path tmp;
+        private OutputStream out;
+        private boolean committed = false;
+
+        private Entry(Path target, Path tmp) throws IOException {
+            this.target = target;
+            this.tmp = tmp;
+            this.out = new GZIPOutputStream(Files.newOutputStream(tmp), 65536) {
+                {
+                    def.setLevel(Deflater.BEST_SPEED); // keep up with the network
+                }
+            };
+        }
+
+        /**
+         * @return a stream reading the response, copying it to the archive
+         */
+        public InputStream tee(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        write(new byte[] { (byte) b }, 0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        write(b, off, n);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        private void write(byte[] b, int off, int len) {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(IOException e) {
+            errors.inc();
+            System.out.println("archive: cannot write " + target + " (" + e.getMessage() + ")");
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+                out = null;
+            }
+        }
+
+        /**
+         * The response has been read and parsed completely: move it to the archive.
+         */
+        public void commit() {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.close();
+                out = null;
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                committed = true;
+                archived.inc();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Discard the response unless it was committed.
+         */
+        @Override
+        public void close() {
+            if (committed) {
+                return;
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+                out = null;
+            }
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+}
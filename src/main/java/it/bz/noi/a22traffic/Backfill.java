@@ -0,0 +1,292 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A22 traffic API connector: finds and repairs gaps in the stored data of single
+ * coils, without reloading whole months.
+ *
+ * Gap detection counts the stored events per coil and hour (one aggregate query on
+ * the timestamp index) and compares each hour with the norm of the coil for that
+ * hour of the day, the median over the days scanned. An hour with fewer than
+ * A22_BACKFILL_RATIO times its norm is a gap, provided the norm is at least
+ * A22_BACKFILL_MIN_EVENTS (quiet coils and night hours are never gaps). Adjacent
+ * gap hours of a coil are merged into windows of up to MAX_WINDOW seconds.
+ *
+ * Each window is retrieved again and, in a single transaction, replaces the events
+ * stored for the coil in the window, unless the web service returns no more events
+ * than are stored. Windows are repaired one at a time, so backfill never uses more
+ * than one connection to the web service and the database. In follow mode, a
+ * repair round runs after each iteration for at most A22_BACKFILL_BUDGET_SEC, so
+ * live data keeps priority; the queue of windows carries over to the next round.
+ */
+public class Backfill {
+
+    private static final long BUCKET = 3600;
+    private static final long MAX_WINDOW = 3 * 3600;
+
+    private static final Metrics.Counter recovered = Metrics.counter("a22_backfill_events_recovered_total", "Events added by repairing gaps");
+    private static final Metrics.Gauge pending_gaps = Metrics.gauge("a22_backfill_pending_windows", "Gap windows waiting to be repaired", null);
+
+    private static final Backfill shared = new Backfill();
+
+    private static class Gap {
+        final String coil;
+        final long fr;
+        final long to; // inclusive
+        int attempts = 0;
+
+        Gap(String coil, long fr, long to) {
+            this.coil = coil;
+            this.fr = fr;
+            this.to = to;
+        }
+    }
+
+    private final long budget_ms;
+    private final long lookback;
+    private final long settle;
+    private final long scan_interval_ms;
+    private final double ratio;
+    private final int min_events;
+    private final int max_attempts;
+
+    // only used by the follow thread
+    private final ArrayDeque<Gap> pending = new ArrayDeque<>();
+    private final Set<String> seen = new HashSet<>(); // coil + " " + bucket, each bucket is repaired once
+    private long last_scan = 0;
+    private long repaired = 0;
+
+    public Backfill() {
+        this.budget_ms = Config.getLong("A22_BACKFILL_BUDGET_SEC", 60) * 1000;
+        this.lookback = Config.getLong("A22_BACKFILL_LOOKBACK_DAYS", 7) * 86400;
+        this.settle = Config.getLong("A22_BACKFILL_SETTLE_SEC", 3600);
+        this.scan_interval_ms = Config.getLong("A22_BACKFILL_SCAN_SEC", 3600) * 1000;
+        this.ratio = Config.getDouble("A22_BACKFILL_RATIO", 0.2);
+        this.min_events = Config.getInt("A22_BACKFILL_MIN_EVENTS", 30);
+        this.max_attempts = Config.getInt("A22_RETRY_ATTEMPTS", 6);
+        pending_gaps.set("", () -> pending.size());
+    }
+
+    /**
+     * @return the instance used by follow mode, keeping its queue across iterations
+     */
+    public static Backfill shared() {
+        return shared;
+    }
+
+    /**
+     * Follow mode: scan for gaps every A22_BACKFILL_SCAN_SEC seconds (up to the
+     * follow checkpoint of each coil) and repair queued gaps for at most
+     * A22_BACKFILL_BUDGET_SEC seconds. Does nothing if the budget is 0.
+     */
+    public void runRound(Connector conn, String jdbc_url) throws IOException, SQLException {
+        if (budget_ms <= 0) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + budget_ms;
+        SensorRegistry.Snapshot registry = SensorRegistry.shared().get(conn);
+        Connection db = DriverManager.getConnection(jdbc_url);
+        db.setAutoCommit(false);
+        try {
+            if (System.currentTimeMillis() - last_scan >= scan_interval_ms) {
+                last_scan = System.currentTimeMillis();
+                long to = Instant.now().getEpochSecond() - settle;
+                // buckets that fell out of the lookback are not scanned any more
+                seen.removeIf(k -> Long.parseLong(k.substring(k.lastIndexOf(' ') + 1)) < to - lookback - BUCKET);
+                Map<String, Long> checkpoints = Checkpoints.load(db, Collections.singletonList(Checkpoints.FOLLOW));
+                db.commit();
+                Map<String, Long> limits = new HashMap<>();
+                for (String coil : registry.coils().keySet()) {
+                    Long cp = checkpoints.get(Checkpoints.key(Checkpoints.FOLLOW, coil));
+                    // coils never followed have nothing to compare with
+                    limits.put(coil, cp != null ? Math.min(cp, to) : Long.MIN_VALUE);
+                }
+                int queued = 0;
+                for (Gap g : detect(db, registry.coils().keySet(), to - lookback, to - lookback, to, limits)) {
+                    queued += queue(g) ? 1 : 0;
+                }
+                System.out.println("backfill: " + queued + " new gaps queued, " + pending.size() + " pending");
+            }
+            repair(conn, db, registry, deadline);
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Manual mode: find and repair all gaps between fr and to. Norms are taken
+     * over at least A22_BACKFILL_LOOKBACK_DAYS days before to.
+     */
+    public void runInterval(Connector conn, String jdbc_url, long fr, long to) throws IOException, SQLException {
+        SensorRegistry.Snapshot registry = SensorRegistry.shared().get(conn);
+        Connection db = DriverManager.getConnection(jdbc_url);
+        db.setAutoCommit(false);
+        try {
+            for (Gap g : detect(db, registry.coils().keySet(), Math.min(fr, to - lookback), fr, to, Collections.emptyMap())) {
+                queue(g);
+            }
+            System.out.println("backfill: " + pending.size() + " gaps found between " + fr + " and " + to);
+            repair(conn, db, registry, Long.MAX_VALUE);
+        } finally {
+            db.close();
+        }
+    }
+
+    private boolean queue(Gap g) {
+        boolean fresh = false;
+        for (long b = g.fr; b <= g.to; b += BUCKET) {
+            fresh |= seen.add(g.coil + " " + b);
+        }
+        if (fresh) {
+            pending.add(g);
+        }
+        return fresh;
+    }
+
+    /**
+     * Count the stored events per coil and hour between scan_fr and to and
+     * return the gaps between fr and to (and before the limit of the coil, if any).
+     */
+    private List<Gap> detect(Connection db, Set<String> coils, long scan_fr, long fr, long to, Map<String, Long> limits) throws SQLException {
+        long t0 = System.currentTimeMillis();
+        long b0 = Math.floorDiv(scan_fr, BUCKET);
+        long b1 = Math.floorDiv(to, BUCKET); // exclusive, the last hour may be incomplete
+        int n = (int) Math.max(0, b1 - b0);
+
+        Map<String, int[]> counts = new HashMap<>();
+        PreparedStatement pst = db.prepareStatement("select split_part(stationcode, ':', 2), \"timestamp\" / " + BUCKET + ", count(*) "
+                + "from a22.a22_traffic where \"timestamp\" >= ? and \"timestamp\" < ? group by 1, 2");
+        pst.setInt(1, (int) (b0 * BUCKET));
+        pst.setInt(2, (int) (b1 * BUCKET));
+        ResultSet rs = pst.executeQuery();
+        while (rs.next()) {
+            String coil = rs.getString(1);
+            if (coils.contains(coil)) {
+                counts.computeIfAbsent(coil, k -> new int[n])[(int) (rs.getLong(2) - b0)] = rs.getInt(3);
+            }
+        }
+        rs.close();
+        pst.close();
+        db.commit();
+
+        List<Gap> gaps = new ArrayList<>();
+        for (Map.Entry<String, int[]> e : counts.entrySet()) {
+            String coil = e.getKey();
+            int[] c = e.getValue();
+            long limit = limits.getOrDefault(coil, Long.MAX_VALUE);
+
+            // norm per hour of the day: median over the days scanned
+            int[] norm = new int[24];
+            for (int h = 0; h < 24; h++) {
+                int[] v = new int[(n + 23) / 24];
+                int k = 0;
+                for (int i = 0; i < n; i++) {
+                    if ((b0 + i) % 24 == h) {
+                        v[k++] = c[i];
+                    }
+                }
+                Arrays.sort(v, 0, k);
+                norm[h] = k > 0 ? v[k / 2] : 0;
+            }
+
+            Gap open = null;
+            for (int i = 0; i < n; i++) {
+                long lo = (b0 + i) * BUCKET;
+                long hi = lo + BUCKET - 1;
+                int h = (int) ((b0 + i) % 24);
+                boolean gap = lo >= fr && hi <= limit && norm[h] >= min_events && c[i] < ratio * norm[h];
+                if (gap && open != null && open.to + 1 == lo && hi - open.fr < MAX_WINDOW) {
+                    open = new Gap(coil, open.fr, hi);
+                    gaps.set(gaps.size() - 1, open);
+                } else if (gap) {
+                    open = new Gap(coil, lo, hi);
+                    gaps.add(open);
+                }
+            }
+        }
+        System.out.println("backfill: scanned " + counts.size() + " coils over " + n + " hours in " + (System.currentTimeMillis() - t0) + " ms, " + gaps.size() + " gaps");
+        return gaps;
+    }
+
+    /**
+     * Repair queued gaps one at a time until the queue is empty or the deadline has passed.
+     */
+    private void repair(Connector conn, Connection db, SensorRegistry.Snapshot registry, long deadline) throws SQLException {
+        TrafficWriter writer = TrafficWriter.create(registry.countryTable());
+        Partitions partitions = Partitions.load(db);
+        db.commit();
+        CircuitBreaker breaker = CircuitBreaker.shared();
+        int done = 0;
+        for (Iterator<Gap> it = pending.iterator(); it.hasNext() && System.currentTimeMillis() < deadline;) {
+            Gap g = it.next();
+            if (breaker.blockedFor(g.coil) > 0) {
+                continue;
+            }
+            long t0 = System.currentTimeMillis();
+            TransitBatch res;
+            try {
+                res = conn.getVehiclesForCoil(g.coil, g.fr, g.to);
+                breaker.success(g.coil);
+            } catch (IOException e) {
+                breaker.failure(g.coil);
+                if (++g.attempts >= max_attempts) {
+                    System.out.println("backfill: coil " + g.coil + " interval " + g.fr + " .. " + g.to + " given up: " + e.getMessage());
+                    it.remove();
+                }
+                continue;
+            }
+            long t1 = System.currentTimeMillis();
+
+            try {
+                partitions.ensure(db, g.fr, g.to); // commits
+                PreparedStatement pst = db.prepareStatement("select count(*) from a22.a22_traffic where split_part(stationcode, ':', 2) = ? and \"timestamp\" between ? and ?");
+                pst.setString(1, g.coil);
+                pst.setInt(2, (int) g.fr);
+                pst.setInt(3, (int) g.to);
+                ResultSet rs = pst.executeQuery();
+                rs.next();
+                int stored = rs.getInt(1);
+                rs.close();
+                pst.close();
+                if (res.size() > stored) {
+                    // replace, so that nothing is stored twice even without A22_IDEMPOTENT
+                    Pipeline.replace(db, g.coil, g.fr, g.to);
+                    partitions.write(writer, db, res);
+                    repaired += res.size() - stored;
+                    recovered.add("", res.size() - stored);
+                }
+                db.commit();
+                System.out.println("backfill: coil " + g.coil + " interval " + g.fr + " .. " + g.to + ": " + stored + " stored, " + res.size()
+                        + " retrieved" + (res.size() > stored ? ", replaced" : ", kept") + " (retrieve " + (t1 - t0) + " ms, store " + (System.currentTimeMillis() - t1) + " ms)");
+            } catch (SQLException | IOException e) {
+                db.rollback();
+                System.out.println("backfill: coil " + g.coil + " interval " + g.fr + " .. " + g.to + " not stored: " + e.getMessage());
+            }
+            it.remove();
+            done++;
+        }
+        System.out.println("backfill: " + done + " windows processed, " + pending.size() + " pending, " + repaired + " events recovered so far");
+    }
+
+}
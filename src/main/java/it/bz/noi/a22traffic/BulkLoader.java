@@ -10,134 +10,471 @@
     (C) 2019-2022 NOI Techpark Südtirol / Alto Adige
     (C) 2018 IDM Suedtirol - Alto Adige
 
-    Author: Chris Mair - chris@1006.org  
+    Author: Chris Mair - chris@1006.org
  */
 package it.bz.noi.a22traffic;
 
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.sql.Types;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
 
 /**
- * A22 traffic API connector: runnable for bulk operations (arguments "month" or "interval").
+ * A22 traffic API connector: bulk operations (arguments "month" or "interval").
+ *
+ * The interval is cut into segments (A22_BULK_SEGMENT, one day by default) and
+ * each (segment, coil) pair becomes a task on a work-stealing pool, so all workers
+ * stay busy until the whole interval is done, no matter how unevenly the traffic is
+ * distributed over time. Within its segment, a task walks the coil's data in
+ * consecutive windows whose length is adapted to the observed event rate (see
+ * WindowSizer). The workers only fetch, storing is done by the writer threads of
+ * a Pipeline: the events of a window are handed to it in chunks of up to
+ * A22_BULK_CHUNK_EVENTS as they are parsed, so memory use does not depend on the
+ * size of the responses. Only the last chunk of a window advances its checkpoint;
+ * if a window fails after some chunks were stored, the retry replaces them
+ * (unless A22_IDEMPOTENT skips them anyway).
+ *
+ * Each (segment, coil) pair has its own checkpoint (see Checkpoints), advanced as
+ * its windows are committed. Running the same interval again (with the same
+ * A22_BULK_SEGMENT) resumes every pair right after its checkpoint, so an aborted
+ * or partly failed run can simply be repeated.
+ *
+ * Windows that cannot be retrieved are retried with exponential backoff
+ * (RetryQueue), coils that keep failing are paused by a CircuitBreaker. A coil
+ * whose trial request after the pause fails too is given up for the rest of the
+ * run (all its segments), instead of waiting for the breaker segment by segment.
+ *
+ * With A22_VIRTUAL_THREADS, each task runs on a virtual thread of its own instead
+ * (see VirtualThreads).
+ *
+ * If a22.a22_traffic is partitioned, the partitions covering the interval are
+ * created first. With A22_BULK_DETACHED, periods entirely inside the interval that
+ * have no partition yet are instead loaded into detached tables, which are attached
+ * at the end of a run without failures (see Partitions).
  */
-public class BulkLoader implements Runnable {
+public class BulkLoader {
 
-    private final int thread_num;
     private final String jdbc_url;
     private final Connector conn;
     private final long epoch_start;
     private final long epoch_end;
-    private final Map<String, long[]> load_result;
-
-    public BulkLoader(int thread_num, String jdbc_url, Connector conn, 
-        long epoch_start, long epoch_end, Map<String, long[]> load_result) {
-        this.thread_num = thread_num;
+    private final int parallelism;
+    private final long segment;
+    private final WindowSizer sizer = new WindowSizer();
+    private final int chunk_size = Config.getInt("A22_BULK_CHUNK_EVENTS", 10000);
+
+    private final Map<String, long[]> load_result = new ConcurrentHashMap<>();
+    private final List<String> failed = Collections.synchronizedList(new ArrayList<>());
+
+    private ArrayList<String> coils;
+    private Map<String, Long> checkpoints;
+    private Pipeline pipeline;
+    private RetryQueue retries;
+    private final CircuitBreaker breaker = CircuitBreaker.shared();
+    // coils still failing after a circuit breaker cooldown: their remaining tasks are given up
+    private final Set<String> given_up = ConcurrentHashMap.newKeySet();
+
+    // per segment progress
+    private AtomicIntegerArray segment_pending;
+    private AtomicIntegerArray segment_requests;
+    private AtomicLongArray segment_records;
+    private AtomicLongArray segment_retrieve_ms;
+    private AtomicLongArray segment_store_ms;
+    private final AtomicLong total_records = new AtomicLong();
+    private final AtomicLong total_requests = new AtomicLong();
+
+    /**
+     * @param epoch_start first timestamp to load
+     * @param epoch_end   timestamps up to epoch_end - 1 are loaded
+     * @param parallelism number of worker threads (and concurrent requests to the web service)
+     */
+    public BulkLoader(String jdbc_url, Connector conn, long epoch_start, long epoch_end, int parallelism) {
         this.jdbc_url = jdbc_url;
         this.conn = conn;
         this.epoch_start = epoch_start;
         this.epoch_end = epoch_end;
-        this.load_result = load_result;
+        this.parallelism = parallelism;
+        this.segment = Config.getLong("A22_BULK_SEGMENT", 86400);
     }
 
-    @Override
-    public void run() {
+    /**
+     * Load the interval.
+     *
+     * @return the min and max timestamp loaded for each station code
+     */
+    public Map<String, long[]> run() throws IOException, ClassNotFoundException, SQLException {
+
+        System.out.println("bulk mode: started at " + ZonedDateTime.now() + " (" + (VirtualThreads.enabled() ? "virtual threads, up to " + VirtualThreads.maxInflight() : "parallelism " + parallelism) + ", segment " + segment + " s)");
+
+        // ---------------------------------------------------------------------
+        // get the sensors, the unique coil IDs and the countries, once for all tasks
+        SensorRegistry.Snapshot registry = SensorRegistry.shared().get(conn);
+        System.out.println("bulk mode: number of sensors: " + registry.sensors().size());
+        coils = new ArrayList<>(registry.coils().keySet());
+        System.out.println("bulk mode: number of coils: " + coils.size());
+
+        String[] countries = registry.countryTable();
+
+        // ---------------------------------------------------------------------
+        // one task for each (segment, coil) pair
+        int segment_cnt = (int) ((epoch_end - 1 - epoch_start + segment - 1) / segment);
+        if (segment_cnt <= 0 || coils.isEmpty()) {
+            return load_result;
+        }
+        segment_pending = new AtomicIntegerArray(segment_cnt);
+        segment_requests = new AtomicIntegerArray(segment_cnt);
+        segment_records = new AtomicLongArray(segment_cnt);
+        segment_retrieve_ms = new AtomicLongArray(segment_cnt);
+        segment_store_ms = new AtomicLongArray(segment_cnt);
+        for (int g = 0; g < segment_cnt; g++) {
+            // one for each task, plus one for each window handed to the pipeline
+            segment_pending.set(g, coils.size());
+        }
+
+        // resume each (segment, coil) pair from its checkpoint, if any
+        ArrayList<String> scopes = new ArrayList<>();
+        for (int g = 0; g < segment_cnt; g++) {
+            scopes.add(scopeOf(g));
+        }
+        Class.forName("org.postgresql.Driver");
+
+        // store the windows spooled while the database was unavailable first
+        Spool.shared().drain(jdbc_url, countries);
+
+        Partitions partitions;
+        try (Connection db = DriverManager.getConnection(jdbc_url)) {
+            checkpoints = Checkpoints.load(db, scopes);
+
+            // create the partitions needed (or the detached tables)
+            db.setAutoCommit(false);
+            partitions = Partitions.load(db);
+            boolean detached = Config.getBoolean("A22_BULK_DETACHED", false);
+            for (long lo = partitions.period(epoch_start)[0]; lo < epoch_end; lo = partitions.period(lo)[1]) {
+                long hi = partitions.period(lo)[1];
+                if (!(detached && lo >= epoch_start && hi <= epoch_end && partitions.prepareDetached(db, lo))) {
+                    partitions.ensure(db, Math.max(lo, epoch_start), Math.min(hi, epoch_end) - 1);
+                }
+            }
+        }
+        int complete = 0;
+        for (int g = 0; g < segment_cnt; g++) {
+            for (String coilid : coils) {
+                Long cp = checkpoints.get(Checkpoints.key(scopeOf(g), coilid));
+                if (cp != null && cp >= segmentEnd(g)) {
+                    complete++;
+                }
+            }
+        }
+        System.out.println("bulk mode: checkpoints found for " + checkpoints.size() + " of " + segment_cnt * coils.size() + " (segment, coil) tasks, " + complete + " already complete");
+
+        // the worker threads fetch, the pipeline's writer threads store
+        pipeline = new Pipeline("bulk", jdbc_url, countries, partitions, new Pipeline.Listener() {
+            @Override
+            public void stored(Pipeline.Item item, long store_ms) {
+                int g = segmentOf(item.fr);
+                TransitBatch res = item.batch;
+                for (int i = 0; i < res.size(); i++) {
+                    // min and max timestamp handling
+                    long ts = res.timestamp(i);
+                    load_result.merge(res.stationcode(i), new long[] { ts, ts }, (bounds, t) -> {
+                        bounds[0] = Math.min(bounds[0], t[0]);  // min timestamp
+                        bounds[1] = Math.max(bounds[1], t[1]);  // max timestamp
+                        return bounds;
+                    });
+                }
+                segment_records.addAndGet(g, res.size());
+                segment_store_ms.addAndGet(g, store_ms);
+                total_records.addAndGet(res.size());
+                done(g);
+            }
 
+            @Override
+            public void failed(Pipeline.Item item, Exception e) {
+                if (item.last) {
+                    // the last chunk fails too if an earlier one did (see Pipeline)
+                    failed.add("coil " + item.coil + " interval " + item.fr + " .. " + item.to);
+                }
+                done(segmentOf(item.fr));
+            }
+        });
+        // on virtual threads, every task gets a thread of its own (they start in
+        // the order submitted, as running tasks end)
+        ExecutorService pool = VirtualThreads.enabled() ? VirtualThreads.newExecutor() : new ForkJoinPool(parallelism);
+        retries = new RetryQueue("bulk", pool);
         try {
+            if (pool instanceof ForkJoinPool) {
+                ((ForkJoinPool) pool).invoke(new Tasks(0, (long) segment_cnt * coils.size()));
+            } else {
+                for (long k = 0; k < (long) segment_cnt * coils.size(); k++) {
+                    int g = (int) (k / coils.size());
+                    String coilid = coils.get((int) (k % coils.size()));
+                    retries.submit(() -> load(g, coilid));
+                }
+            }
+            retries.awaitIdle();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            retries.close();
+            pool.shutdownNow();
+            try {
+                pipeline.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
-            System.out.println("th" + thread_num + " thread started at " + ZonedDateTime.now());
+        System.out.println("bulk mode: " + total_records.get() + " records total in " + total_requests.get() + " requests (" + retries.retries() + " retries), ended at " + ZonedDateTime.now());
+        if (!failed.isEmpty()) {
+            System.out.println("bulk mode: WARNING " + failed.size() + " (coil, window) tasks failed, run again to resume from the checkpoints:");
+            synchronized (failed) {
+                for (String f : failed) {
+                    System.out.println("  " + f);
+                }
+            }
+        }
 
-            // ---------------------------------------------------------------------
-            // connect to Postgres
-            Class.forName("org.postgresql.Driver");
-            Connection db = DriverManager.getConnection(jdbc_url);
+        if (partitions.hasDetached()) {
+            if (failed.isEmpty() && !Thread.currentThread().isInterrupted()) {
+                try (Connection db = DriverManager.getConnection(jdbc_url)) {
+                    db.setAutoCommit(false);
+                    partitions.attachDetached(db);
+                }
+            } else {
+                System.out.println("bulk mode: WARNING detached tables are left unattached, they are attached once a run completes without failures");
+            }
+        }
 
-            // ---------------------------------------------------------------------
-            // get the sensors
-            ArrayList<HashMap<String, String>> sensors = conn.getTrafficSensors();
-            System.out.println("th" + thread_num + " number of sensors: " + sensors.size());
+        return load_result;
+    }
 
-            Map<String, String> countries = conn.getCountries();
+    /**
+     * A range of task indexes, split in halves until a single (segment, coil) task is left.
+     * Task k covers segment k / coils and coil k % coils, so segments are processed
+     * roughly in chronological order.
+     */
+    private class Tasks extends RecursiveAction {
 
-            // ---------------------------------------------------------------------
-            // perform getVehicles() operation in batches of 1000 seconds each
-            long batch = epoch_start;
+        private static final long serialVersionUID = 1L;
+
+        private final long lo;
+        private final long hi;
+
+        Tasks(long lo, long hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
 
-            ArrayList<HashMap<String, String>> res;
+        @Override
+        protected void compute() {
+            if (hi - lo == 1) {
+                load((int) (lo / coils.size()), coils.get((int) (lo % coils.size())));
+            } else {
+                long mid = (lo + hi) >>> 1;
+                invokeAll(new Tasks(lo, mid), new Tasks(mid, hi));
+            }
+        }
+    }
 
-            while (batch < epoch_end - 1) {
-                long fr = batch;
-                long to = Math.min(epoch_end - 1, batch + 999);
+    private int segmentOf(long ts) {
+        return (int) ((ts - epoch_start) / segment);
+    }
 
-                System.out.println("th" + thread_num + " time:     " + ZonedDateTime.now());
-                System.out.println("th" + thread_num + " interval: " + fr + " .. " + to);
+    private long segmentEnd(int g) {
+        return Math.min(epoch_end - 1, epoch_start + g * segment + segment - 1);
+    }
 
-                long t0 = System.currentTimeMillis();
+    private String scopeOf(int g) {
+        return Checkpoints.bulkScope(epoch_start + g * segment, segmentEnd(g));
+    }
 
-                res = conn.getVehicles(thread_num, fr, to, sensors, null);
+    /**
+     * Load one coil's data for segment g, window by window, starting after the
+     * checkpoint.
+     */
+    private void load(int g, String coilid) {
+        long seg_fr = epoch_start + g * segment;
+        Long cp = checkpoints.get(Checkpoints.key(scopeOf(g), coilid));
+        load(g, coilid, cp == null ? seg_fr : Math.max(seg_fr, cp + 1), 0, 0);
+    }
 
-                long t1 = System.currentTimeMillis();
+    /**
+     * Load one coil's data for segment g from fr on, window by window. A window that
+     * cannot be retrieved ends the task: the checkpoint could not move past it anyway.
+     * The rest of the segment is retried later from that window on, as a new task
+     * (see RetryQueue), leaving the worker thread free in the meantime.
+     *
+     * @param attempt    number of consecutive failed attempts for the window at fr
+     * @param replace_to if not before fr, chunks of a failed attempt at the window at
+     *                   fr have been stored up to there, the next attempt replaces them
+     */
+    private void load(int g, String coilid, long fr, int attempt, long replace_to) {
+
+        long seg_to = segmentEnd(g);
+        String scope = scopeOf(g);
+
+        while (fr <= seg_to && !Thread.currentThread().isInterrupted() && !pipeline.isBroken(scope, coilid) && !given_up.contains(coilid)) {
+            long blocked = breaker.blockedFor(coilid);
+            if (blocked > 0) {
+                // the coil keeps failing, come back when the breaker lets a request through
+                if (requeue(g, coilid, fr, attempt, replace_to, blocked)) {
+                    return;
+                }
+                break;
+            }
 
-                db.setAutoCommit(false);
-                PreparedStatement ins = db.prepareStatement(
-                        "insert into a22.a22_traffic "
-                        + "(stationcode, timestamp, distance, headway, length, axles, against_traffic, class, speed, direction, country, license_plate_initials) "
-                        + "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
-                for (int i = 0; i < res.size(); i++) {
-                    // min and max timestamp handling
-                    String stationcode = res.get(i).get("stationcode");
-                    long ts = Long.parseLong(res.get(i).get("timestamp"));
-
-                    long[] bounds = this.load_result.getOrDefault(stationcode, new long[] { Long.MAX_VALUE, Long.MIN_VALUE });
-                    bounds[0] = Math.min(bounds[0], ts);  // min timestamp
-                    bounds[1] = Math.max(bounds[1], ts);  // max timestamp
-                    this.load_result.put(stationcode, bounds);
-                    
-                    ins.setString(1, stationcode);
-                    ins.setInt(2, Integer.parseInt(res.get(i).get("timestamp")));
-                    ins.setDouble(3, Double.parseDouble(res.get(i).get("distance")));
-                    ins.setDouble(4, Double.parseDouble(res.get(i).get("headway")));
-                    ins.setDouble(5, Double.parseDouble(res.get(i).get("length")));
-                    ins.setInt(6, Integer.parseInt(res.get(i).get("axles")));
-                    ins.setBoolean(7, Boolean.parseBoolean(res.get(i).get("against_traffic")));
-                    ins.setInt(8, Integer.parseInt(res.get(i).get("class")));
-                    ins.setDouble(9, Double.parseDouble(res.get(i).get("speed")));
-                    ins.setInt(10, Integer.parseInt(res.get(i).get("direction")));
-                    ins.setString(11, countries.get(res.get(i).get("country")));
-                    ins.setString(12, "".equals(res.get(i).get("license_plate_initials")) ? null: res.get(i).get("license_plate_initials"));
-                    ins.addBatch();
+            long to = Math.min(seg_to, fr + sizer.next(coilid) - 1);
+
+            segment_pending.incrementAndGet(g);
+            long t0 = System.currentTimeMillis();
+            Chunks chunks = new Chunks(g, scope, coilid, fr, to, replace_to);
+            int n;
+            try {
+                n = conn.getVehiclesForCoil(coilid, fr, to, new TransitBatch(chunk_size), chunk_size, chunks);
+            } catch (IOException | RuntimeException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    done(g);
+                    break;
+                }
+                if (chunks.queued && !IdempotentTrafficWriter.enabled()) {
+                    replace_to = Math.max(replace_to, to);
                 }
-                ins.executeBatch();
-                ins.close();
-                db.commit();
+                boolean trial_failed = breaker.failure(coilid);
+                System.out.println("bulk mode: coil " + coilid + " interval " + fr + " .. " + to + " not retrieved (attempt " + (attempt + 1) + "): " + e.getMessage());
+                if (!(e instanceof NotRetrievedException)) {
+                    e.printStackTrace();
+                }
+                done(g);
+                if (trial_failed && given_up.add(coilid)) {
+                    System.out.println("bulk mode: coil " + coilid + " still failing after the circuit breaker cooldown, giving up on all its segments");
+                }
+                if (!trial_failed && requeue(g, coilid, fr, attempt + 1, replace_to, 0)) {
+                    return;
+                }
+                break;
+            }
+            long t1 = System.currentTimeMillis();
+            breaker.success(coilid);
+            attempt = 0;
+
+            sizer.observe(coilid, to - fr + 1, n);
+            segment_requests.incrementAndGet(g);
+            segment_retrieve_ms.addAndGet(g, t1 - t0);
+            total_requests.incrementAndGet();
+            try {
+                chunks.finish(t1 - t0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                done(g);
+                break;
+            }
+            done(g); // the window itself, its chunks are counted until stored
 
-                long t2 = System.currentTimeMillis();
+            fr = to + 1;
+            replace_to = 0;
+        }
 
-                System.out.println("th" + thread_num + " " + res.size() + " records (retrieve " + (t1 - t0) + " ms, store " + (t2 - t1) + " ms)");
+        if (fr <= seg_to && !pipeline.isBroken(scope, coilid)) {
+            // given up or interrupted (failed stores are listed by the pipeline listener)
+            failed.add("coil " + coilid + " interval " + fr + " .. " + seg_to + " (not retrieved)");
+        }
+        done(g);
+    }
 
-                batch += 1000;
+    /**
+     * Schedule the rest of a task for later.
+     *
+     * @return false if there are no attempts left
+     */
+    private boolean requeue(int g, String coilid, long fr, int attempt, long replace_to, long min_delay_ms) {
+        return retries.retry(attempt, min_delay_ms, () -> load(g, coilid, fr, attempt, replace_to));
+    }
 
-            }
+    /**
+     * Hands the chunks of a window to the pipeline as they are parsed. The latest chunk
+     * is held back until the response is complete: only the last one advances the
+     * checkpoint, and only if the whole window has been retrieved.
+     */
+    private class Chunks implements Consumer<TransitBatch> {
+
+        private final int g;
+        private final String scope;
+        private final String coilid;
+        private final long fr;
+        private final long to;
+        private long replace_to;
+        private TransitBatch held = null;
+        boolean queued = false; // some chunks have been handed to the pipeline
+
+        Chunks(int g, String scope, String coilid, long fr, long to, long replace_to) {
+            this.g = g;
+            this.scope = scope;
+            this.coilid = coilid;
+            this.fr = fr;
+            this.to = to;
+            this.replace_to = replace_to;
+        }
 
-            // ---------------------------------------------------------------------
-            // disconnect from Postgres
-            db.close();
+        @Override
+        public void accept(TransitBatch chunk) {
+            if (held != null) {
+                try {
+                    put(held, false, 0);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted");
+                }
+            }
+            held = new TransitBatch(chunk.size()); // the parser reuses the chunk
+            for (int i = 0; i < chunk.size(); i++) {
+                held.add(chunk, i);
+            }
+        }
 
-        } catch (IOException | ClassNotFoundException | NumberFormatException | SQLException e) {
-            System.out.println("th" + thread_num + " RUNTIME EXCEPTION AT " + ZonedDateTime.now());
-            System.out.println("th" + thread_num + e.getMessage());
-            e.printStackTrace();
+        /**
+         * The whole window has been retrieved: hand over the last chunk (maybe empty).
+         */
+        void finish(long fetch_ms) throws InterruptedException {
+            put(held != null ? held : new TransitBatch(0), true, fetch_ms);
         }
 
-        System.out.println("th" + thread_num + " thread ended at " + ZonedDateTime.now());
+        private void put(TransitBatch batch, boolean last, long fetch_ms) throws InterruptedException {
+            segment_pending.incrementAndGet(g);
+            try {
+                pipeline.put(new Pipeline.Item(scope, coilid, fr, to, batch, last, replace_to), fetch_ms);
+            } catch (InterruptedException e) {
+                done(g);
+                throw e;
+            }
+            replace_to = 0; // done by the first chunk
+            queued = true;
+        }
+    }
 
+    /**
+     * Called when a task has fetched its last window and whenever a window
+     * has been stored or has failed.
+     */
+    private void done(int g) {
+        if (segment_pending.decrementAndGet(g) == 0) {
+            long seg_fr = epoch_start + g * segment;
+            long seg_to = segmentEnd(g);
+            System.out.println("bulk mode: interval " + seg_fr + " .. " + seg_to + ": " + segment_records.get(g) + " records in " + segment_requests.get(g) + " requests (retrieve " + segment_retrieve_ms.get(g) + " ms, store " + segment_store_ms.get(g) + " ms, summed over " + coils.size() + " coils)");
+        }
     }
 
 }
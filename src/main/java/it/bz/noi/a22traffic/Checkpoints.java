@@ -0,0 +1,71 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A22 traffic API connector: per-coil ingestion checkpoints (table a22.a22_checkpoint).
+ *
+ * A checkpoint (scope, coil, last_timestamp) says that all events of the coil up to
+ * and including last_timestamp have been stored. It is advanced by the pipeline in
+ * the same transaction as the events, so after a restart loading resumes exactly at
+ * last_timestamp + 1. The scope separates independent chains of windows: "follow"
+ * for follow mode, one scope per segment for bulk runs (see bulkScope()).
+ */
+public class Checkpoints {
+
+    public static final String FOLLOW = "follow";
+
+    /**
+     * @return the scope of a bulk segment, covering timestamps seg_fr .. seg_to
+     */
+    public static String bulkScope(long seg_fr, long seg_to) {
+        return "bulk:" + seg_fr + ":" + seg_to;
+    }
+
+    /**
+     * Read the checkpoints of the given scopes.
+     *
+     * @return scope + " " + coil -> last_timestamp
+     */
+    public static Map<String, Long> load(Connection db, Collection<String> scopes) throws SQLException {
+        Map<String, Long> result = new HashMap<>();
+        PreparedStatement pst = db.prepareStatement("select scope, coil, last_timestamp from a22.a22_checkpoint where scope = any(?)");
+        pst.setArray(1, db.createArrayOf("text", scopes.toArray()));
+        ResultSet rs = pst.executeQuery();
+        while (rs.next()) {
+            result.put(key(rs.getString(1), rs.getString(2)), rs.getLong(3));
+        }
+        rs.close();
+        pst.close();
+        return result;
+    }
+
+    public static String key(String scope, String coil) {
+        return scope + " " + coil;
+    }
+
+    /**
+     * Move the checkpoint forward to last_timestamp (never backward). Does not commit.
+     */
+    public static void advance(Connection db, String scope, String coil, long last_timestamp) throws SQLException {
+        PreparedStatement pst = db.prepareStatement(
+                "insert into a22.a22_checkpoint (scope, coil, last_timestamp) values (?, ?, ?) on conflict (scope, coil) " +
+                " do update set last_timestamp = greatest(a22_checkpoint.last_timestamp, excluded.last_timestamp), updated_when = now()");
+        pst.setString(1, scope);
+        pst.setString(2, coil);
+        pst.setInt(3, (int) last_timestamp);
+        pst.executeUpdate();
+        pst.close();
+    }
+
+}
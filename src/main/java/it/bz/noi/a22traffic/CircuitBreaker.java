@@ -0,0 +1,92 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A22 traffic API connector: per-coil circuit breaker, shared by all threads (and
+ * follow iterations).
+ *
+ * After A22_BREAKER_THRESHOLD consecutive failed requests for a coil, no more
+ * requests are made for it during A22_BREAKER_COOLDOWN_SEC seconds. Then a single
+ * trial request is let through: if it succeeds the coil is back to normal, if it
+ * fails the breaker opens again. That way a coil that keeps failing does not keep
+ * worker threads busy with requests bound to fail.
+ */
+public class CircuitBreaker {
+
+    private static final long TRIAL_WAIT_MS = 1000;
+
+    private static final Metrics.Counter opened = Metrics.counter("a22_breaker_opened_total", "Times the circuit breaker of a coil opened");
+
+    private static final CircuitBreaker shared = new CircuitBreaker(Config.getInt("A22_BREAKER_THRESHOLD", 5),
+            Config.getLong("A22_BREAKER_COOLDOWN_SEC", 300));
+
+    private static class State {
+        int failures = 0;
+        long open_until = 0;
+        boolean trial = false;
+    }
+
+    private final int threshold;
+    private final long cooldown_ms;
+    private final Map<String, State> states = new HashMap<>(); // guarded by this
+
+    public CircuitBreaker(int threshold, long cooldown_sec) {
+        this.threshold = threshold;
+        this.cooldown_ms = cooldown_sec * 1000;
+    }
+
+    public static CircuitBreaker shared() {
+        return shared;
+    }
+
+    /**
+     * @return 0 if a request for the coil may be made now, otherwise the number of
+     *         milliseconds to wait before asking again
+     */
+    public synchronized long blockedFor(String coil) {
+        State s = states.get(coil);
+        if (s == null || s.failures < threshold) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        if (now < s.open_until) {
+            return s.open_until - now;
+        }
+        if (s.trial) {
+            // another thread is making the trial request
+            return TRIAL_WAIT_MS;
+        }
+        s.trial = true;
+        return 0;
+    }
+
+    public synchronized void success(String coil) {
+        if (states.remove(coil) != null) {
+            System.out.println("circuit breaker: coil " + coil + " closed");
+        }
+    }
+
+    /**
+     * @return true if the failed request was the trial request after a cooldown,
+     *         i.e. the coil is still failing and the breaker opens again
+     */
+    public synchronized boolean failure(String coil) {
+        State s = states.computeIfAbsent(coil, k -> new State());
+        boolean trial_failed = s.trial && s.failures >= threshold;
+        s.failures++;
+        s.trial = false;
+        if (s.failures >= threshold) {
+            s.open_until = System.currentTimeMillis() + cooldown_ms;
+            opened.inc();
+            System.out.println("circuit breaker: coil " + coil + " open for " + cooldown_ms / 1000 + " s after " + s.failures + " consecutive failures");
+        }
+        return trial_failed;
+    }
+
+}
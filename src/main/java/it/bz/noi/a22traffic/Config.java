@@ -0,0 +1,67 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+/**
+ * A22 traffic API connector: optional tuning knobs.
+ *
+ * Values are read from the environment (like JDBC_URL) and can be overridden
+ * with a system property of the same name (-DA22_WRITER=insert).
+ */
+public class Config {
+
+    public static String getString(String name, String def) {
+        String v = System.getProperty(name);
+        if (v == null) {
+            v = System.getenv(name);
+        }
+        return v == null || v.trim().isEmpty() ? def : v.trim();
+    }
+
+    public static int getInt(String name, int def) {
+        String v = getString(name, null);
+        if (v == null) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(v);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("invalid value for " + name + ": '" + v + "'");
+        }
+    }
+
+    public static long getLong(String name, long def) {
+        String v = getString(name, null);
+        if (v == null) {
+            return def;
+        }
+        try {
+            return Long.parseLong(v);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("invalid value for " + name + ": '" + v + "'");
+        }
+    }
+
+    public static double getDouble(String name, double def) {
+        String v = getString(name, null);
+        if (v == null) {
+            return def;
+        }
+        try {
+            return Double.parseDouble(v);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("invalid value for " + name + ": '" + v + "'");
+        }
+    }
+
+    public static boolean getBoolean(String name, boolean def) {
+        String v = getString(name, null);
+        if (v == null) {
+            return def;
+        }
+        return "true".equalsIgnoreCase(v) || "1".equals(v) || "yes".equalsIgnoreCase(v);
+    }
+
+}
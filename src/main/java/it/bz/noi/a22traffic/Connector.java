@@ -16,8 +16,11 @@ package it.bz.noi.a22traffic;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import org.json.simple.*;
 
 /**
@@ -25,29 +28,39 @@ import org.json.simple.*;
  */
 public class Connector {
 
-    private static final int WS_CONN_TIMEOUT_MSEC = 30000;
-    private static final int WS_READ_TIMEOUT_MSEC = 1800000;
     private static final boolean DEBUG = false;
 
-    private String token = null;
+    private static final Metrics.Histogram request_seconds = Metrics.histogram("a22_http_request_seconds", "Time from sending a transit events request to the response status");
+    private static final Metrics.Histogram parse_seconds = Metrics.histogram("a22_http_parse_seconds", "Time to read and parse a transit events response");
+    private static final Metrics.Counter responses = Metrics.counter("a22_http_responses_total", "Transit events responses by HTTP status", "status");
+    private static final Metrics.Counter request_errors = Metrics.counter("a22_http_request_errors_total", "Transit events requests failed without a usable response (I/O or parse errors)");
+    private static final Metrics.Counter authentications = Metrics.counter("a22_http_authentications_total", "Authentications with the web service (including re-authentications after 401)");
+    private static final Metrics.Gauge limiter_limit = Metrics.gauge("a22_limiter_limit", "Current concurrency limit of the adaptive request limiter", null);
+
+    // the session token, replaced as a whole by authenticate() (under auth_lock)
+    private volatile String token = null;
+    private volatile long token_ms = 0; // when the token was obtained
+    private final ReentrantLock auth_lock = new ReentrantLock(); // not a monitor: held during a request, see VirtualThreads
+
+    // tokens older than this are replaced before they are used; if not configured
+    // (0), learned as 90% of the age at which a token was last rejected
+    private final long refresh_ms = Config.getLong("A22_TOKEN_REFRESH_SEC", 0) * 1000;
+    private volatile long learned_refresh_ms = 0;
+
     private final String url;
+    private final HttpTransport http;
+    private final AdaptiveLimiter limiter = AdaptiveLimiter.shared();
+    private final Archive archive = Archive.shared();
     private final String auth_json; // Store auth details for re-authentication
 
     /**
-     * Authenticates and stores the session token.
+     * Authenticates and stores the session token. Callers must hold auth_lock.
      *
      * @throws java.io.IOException
      */
     private void authenticate() throws IOException {
         // make authentication request
-        HttpURLConnection conn = (HttpURLConnection) (new URL(url + "/token")).openConnection();
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/json");
-        conn.setRequestProperty("User-Agent", "IDM/traffic_a22");
-        conn.setRequestProperty("Accept", "*/*");
-        conn.setConnectTimeout(WS_CONN_TIMEOUT_MSEC);
-        conn.setReadTimeout(WS_READ_TIMEOUT_MSEC);
-        conn.setDoOutput(true);
+        HttpURLConnection conn = http.open("/token", "POST");
         OutputStreamWriter os = new OutputStreamWriter(conn.getOutputStream());
         os.write(this.auth_json + "\n");
         os.flush();
@@ -57,14 +70,15 @@ public class Connector {
         }
 
         // get response
-        BufferedReader br = new BufferedReader(new InputStreamReader((conn.getInputStream())));
+        BufferedReader br = new BufferedReader(new InputStreamReader(http.body(conn), StandardCharsets.UTF_8));
         StringBuilder response = new StringBuilder();
         String s;
         while ((s = br.readLine()) != null) {
             response.append(s);
         }
+        br.close();
         os.close();
-        conn.disconnect();
+        http.release(conn, true);
 
         // parse response and store authentication token
         String session_id = null;
@@ -81,7 +95,9 @@ public class Connector {
             throw new RuntimeException("authentication failure (could not find sessionId in response)");
         }
 
+        this.token_ms = System.currentTimeMillis();
         this.token = session_id;
+        authentications.inc();
         System.out.println("auth OK, new token = " + this.token.replaceAll(".{12}$", "************") + ", time = " + ZonedDateTime.now());
     }
 
@@ -97,8 +113,58 @@ public class Connector {
      */
     public Connector(String url, String auth_json) throws IOException {
         this.url = url;
+        this.http = new HttpTransport(url);
         this.auth_json = auth_json;
-        this.authenticate(); // Initial authentication
+        limiter_limit.set("", limiter::limit);
+        auth_lock.lock();
+        try {
+            this.authenticate(); // Initial authentication
+        } finally {
+            auth_lock.unlock();
+        }
+    }
+
+    /**
+     * Replace the given token, unless another thread already did: of all the threads
+     * that got a 401 with the same token, only the first authenticates again, the
+     * others wait for it and use the new token.
+     *
+     * @param stale the token that was rejected or is about to expire
+     */
+    private void refresh(String stale) throws IOException {
+        auth_lock.lock();
+        try {
+            if (token != stale) {
+                return;
+            }
+            authenticate();
+        } finally {
+            auth_lock.unlock();
+        }
+    }
+
+    /**
+     * @return the current token, replaced first if it is about to expire
+     */
+    private String currentToken() throws IOException {
+        String t = token;
+        long max_age = refresh_ms > 0 ? refresh_ms : learned_refresh_ms;
+        if (t != null && max_age > 0 && System.currentTimeMillis() - token_ms > max_age) {
+            refresh(t);
+            t = token;
+        }
+        return t;
+    }
+
+    /**
+     * A token was rejected: remember its age to replace the next ones in time.
+     */
+    private void expired(String rejected) {
+        long age = System.currentTimeMillis() - token_ms;
+        // ignore tokens rejected soon after they were obtained (e.g. replaced by another session)
+        if (token == rejected && age >= 60000) {
+            learned_refresh_ms = age * 9 / 10;
+        }
     }
 
     /**
@@ -113,14 +179,8 @@ public class Connector {
         }
 
         // make de-authentication request
-        HttpURLConnection conn = (HttpURLConnection) (new URL(url + "/token/" + token)).openConnection();
-        conn.setRequestMethod("DELETE");
-        conn.setRequestProperty("Content-Type", "application/json");
-        conn.setRequestProperty("User-Agent", "IDM/traffic_a22");
-        conn.setRequestProperty("Accept", "*/*");
-        conn.setConnectTimeout(WS_CONN_TIMEOUT_MSEC);
-        conn.setReadTimeout(WS_READ_TIMEOUT_MSEC);
-        conn.setDoOutput(true);
+        String token = this.token;
+        HttpURLConnection conn = http.open("/token/" + token, "DELETE");
         OutputStreamWriter os = new OutputStreamWriter(conn.getOutputStream());
         os.write("\n");
         os.flush();
@@ -130,14 +190,15 @@ public class Connector {
         }
 
         // get response
-        BufferedReader br = new BufferedReader(new InputStreamReader((conn.getInputStream())));
+        BufferedReader br = new BufferedReader(new InputStreamReader(http.body(conn), StandardCharsets.UTF_8));
         StringBuilder response = new StringBuilder();
         String s;
         while ((s = br.readLine()) != null) {
             response.append(s);
         }
+        br.close();
         os.close();
-        conn.disconnect();
+        http.release(conn, true);
 
         // parse response
         Boolean result = null;
@@ -153,8 +214,10 @@ public class Connector {
         }
 
         System.out.println("de-auth OK, old token = " + token.replaceAll(".{12}$", "************") + ", time = " + ZonedDateTime.now());
+        System.out.println("http: " + HttpTransport.stats());
+        System.out.println("limiter: " + limiter.stats());
 
-        token = null;
+        this.token = null;
 
     }
 
@@ -171,16 +234,9 @@ public class Connector {
         }
 
         // make request
-        HttpURLConnection conn = (HttpURLConnection) (new URL(url + "/traffico/nazionalita")).openConnection();
-        conn.setRequestMethod("GET");
-        conn.setRequestProperty("Content-Type", "application/json");
-        conn.setRequestProperty("User-Agent", "IDM/traffic_a22");
-        conn.setRequestProperty("Accept", "*/*");
-        conn.setConnectTimeout(WS_CONN_TIMEOUT_MSEC);
-        conn.setReadTimeout(WS_READ_TIMEOUT_MSEC);
-        conn.setDoOutput(true);
+        HttpURLConnection conn = http.open("/traffico/nazionalita", "GET");
         OutputStreamWriter os = new OutputStreamWriter(conn.getOutputStream());
-        os.write("{\"sessionId\":\"" + token + "\"}\n");
+        os.write("{\"sessionId\":\"" + currentToken() + "\"}\n");
         os.flush();
         int status = conn.getResponseCode();
         if (status != 200) {
@@ -188,14 +244,15 @@ public class Connector {
         }
 
         // get response
-        BufferedReader br = new BufferedReader(new InputStreamReader((conn.getInputStream())));
+        BufferedReader br = new BufferedReader(new InputStreamReader(http.body(conn), StandardCharsets.UTF_8));
         StringBuilder response = new StringBuilder();
         String s;
         while ((s = br.readLine()) != null) {
             response.append(s);
         }
+        br.close();
         os.close();
-        conn.disconnect();
+        http.release(conn, true);
 
         // parse response
         HashMap<String, String> output = new HashMap<>();
@@ -212,6 +269,7 @@ public class Connector {
             // null pointer or cast exception in case the json hasn't the expected form
             throw new RuntimeException("could not parse nationality list");
         }
+        archive.countries(output);
 
         if (DEBUG) {
             System.out.println("getTrafficSensors - got list of " + output.size() + " sensors");
@@ -234,16 +292,9 @@ public class Connector {
         }
 
         // make request
-        HttpURLConnection conn = (HttpURLConnection) (new URL(url + "/traffico/anagrafica")).openConnection();
-        conn.setRequestMethod("GET");
-        conn.setRequestProperty("Content-Type", "application/json");
-        conn.setRequestProperty("User-Agent", "IDM/traffic_a22");
-        conn.setRequestProperty("Accept", "*/*");
-        conn.setConnectTimeout(WS_CONN_TIMEOUT_MSEC);
-        conn.setReadTimeout(WS_READ_TIMEOUT_MSEC);
-        conn.setDoOutput(true);
+        HttpURLConnection conn = http.open("/traffico/anagrafica", "GET");
         OutputStreamWriter os = new OutputStreamWriter(conn.getOutputStream());
-        os.write("{\"sessionId\":\"" + token + "\"}\n");
+        os.write("{\"sessionId\":\"" + currentToken() + "\"}\n");
         os.flush();
         int status = conn.getResponseCode();
         if (status != 200) {
@@ -251,14 +302,15 @@ public class Connector {
         }
 
         // get response
-        BufferedReader br = new BufferedReader(new InputStreamReader((conn.getInputStream())));
+        BufferedReader br = new BufferedReader(new InputStreamReader(http.body(conn), StandardCharsets.UTF_8));
         StringBuilder response = new StringBuilder();
         String s;
         while ((s = br.readLine()) != null) {
             response.append(s);
         }
+        br.close();
         os.close();
-        conn.disconnect();
+        http.release(conn, true);
 
         // parse response
         ArrayList<HashMap<String, String>> output = new ArrayList<>();
@@ -308,97 +360,35 @@ public class Connector {
         return output;
     }
     /**
-     * Retrieve the list of vehicle transit events for all known sensors.
-     *
-     * @param thread_num thread number, just for debug prints
-     *
-     * @param fr search events from this timestamp (Unix epoch in UTC)
-     *
-     * @param to search events up to *and* *including* this timestamp (Unix epoch in UTC)
-     *
-     * @param sensors list of sensors as returned by getTrafficSensors() or null (to get them all)
-     *
-     * @param coils_fr if this is not null, then it overrides parameter fr (this is *per* coil_id)
-     *
-     *
-     * @return an ArrayList of HashMaps with the vehicle transit event info
+     * Retrieve vehicle transit events for a single coil ID within a time range.
      *
-     * @throws IOException
+     * @throws NotRetrievedException if the events could not be retrieved (an empty
+     *         batch always means that there are no events)
      */
-    public ArrayList<HashMap<String, String>> getVehicles(int thread_num, long fr, long to, ArrayList<HashMap<String, String>> sensors, HashMap<String, Integer> coils_fr) throws IOException {
-
-        if (url == null || token == null) {
-            throw new RuntimeException("there is no authenticated session");
-        }
-
-        ArrayList<HashMap<String, String>> output = new ArrayList<>();
-
-        HashMap<Integer, Integer> http_codes = new HashMap<>();
-
-        // convert to format used by A22
-        // (see the comment "Reverse engineering the A22 timestamp format" at the end of the file)
-        String frTS = fr + "000+0000";
-        String toTS = to + "999+0000";
-
-        // retrieve the list of sensors (unless we got them already)
-        if (sensors == null) {
-            sensors = getTrafficSensors();
-        }
-
-        // extract the unique coil IDs
-        HashMap<String, Integer> coils = new HashMap<>();
-        int sid;
-        for (sid = 0; sid < sensors.size(); sid++) {
-            // stationcode = A22:coilid:sensorid
-            String split[] = sensors.get(sid).get("stationcode").split(":");
-            if (split.length != 3) {
-                throw new RuntimeException("stationcode does not have the expected format");
-            }
-            coils.put(split[1], 1);
-        }
-        if (coils.isEmpty()) {
-            return output;
-        }
-
-        // loop over the coil IDs and retrieve transit events for each coil ID, adding to the output list
-        for (String coilid : coils.keySet()) {
-            if (coils_fr != null) {
-                if (coils_fr.get(coilid) == null) {
-                    throw new RuntimeException("got per coil from timestamps, but cannot find coil id '" + coilid + "'");
-                }
-                frTS = coils_fr.get(coilid) + "000+0000";
-            }
-
-            output.addAll(getVehiclesForCoil(coilid, frTS, toTS, http_codes));
-        } // for coilid
-
-        if (DEBUG) {
-            System.out.println("getVehicles summary - coils: " + coils.keySet().size() + ", sensors: " + sensors.size() + ", transit events: " + output.size());
-            System.out.println("getVehicles summary - response codes: " + http_codes);
-        }
-
-        // keep track of response codes, even when not in debug mode for the time being
-        System.out.println("th" + thread_num + " response codes: " + http_codes);
-
+    public TransitBatch getVehiclesForCoil(String coilid, long fr, long to) throws IOException {
+        TransitBatch output = new TransitBatch();
+        getVehiclesForCoil(coilid, fr, to, output, Integer.MAX_VALUE, null);
         return output;
-
     }
 
     /**
-     * Retrieve vehicle transit events for a single coil ID within a time range.
-     * Can be called directly for per-coil processing (Follower) or via getVehicles() for batch processing (BulkLoader).
+     * Retrieve vehicle transit events for a single coil ID within a time range,
+     * handing them to the consumer in chunks of chunk_size events as they are parsed.
+     *
+     * The batch is cleared after each call to the consumer and reused.
+     *
+     * @return the number of events retrieved
      */
-    public ArrayList<HashMap<String, String>> getVehiclesForCoil(String coilid, long fr, long to) throws IOException {
+    public int getVehiclesForCoil(String coilid, long fr, long to, TransitBatch batch, int chunk_size, Consumer<TransitBatch> consumer) throws IOException {
         if (url == null || token == null) {
             throw new RuntimeException("there is no authenticated session");
         }
+        int count = 0;
+
+        // convert to format used by A22
+        // (see the comment "Reverse engineering the A22 timestamp format" at the end of the file)
         String frTS = fr + "000+0000";
         String toTS = to + "999+0000";
-        return getVehiclesForCoil(coilid, frTS, toTS, null);
-    }
-
-    private ArrayList<HashMap<String, String>> getVehiclesForCoil(String coilid, String frTS, String toTS, HashMap<Integer, Integer> http_codes) throws IOException {
-        ArrayList<HashMap<String, String>> output = new ArrayList<>();
 
         final int MAX_RETRIES = 10;
         for (int attempt = 1; attempt <= MAX_RETRIES; attempt++) {
@@ -407,95 +397,125 @@ public class Connector {
             }
 
             HttpURLConnection conn = null;
+            InputStream body = null;
+            Archive.Entry archived = null;
+            boolean ok = false; // whether the connection is in a state that allows reusing it
+            AdaptiveLimiter.Signal signal = AdaptiveLimiter.Signal.CONGESTION; // unless we get a response
+            long latency = 0;
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for the request limiter");
+            }
             try {
                 // make request
-                conn = (HttpURLConnection) (new URL(url + "/traffico/transiti")).openConnection();
-                conn.setRequestMethod("GET");
-                conn.setRequestProperty("Content-Type", "application/json");
-                conn.setRequestProperty("User-Agent", "IDM/traffic_a22");
-                conn.setRequestProperty("Accept", "*/*");
-                conn.setConnectTimeout(WS_CONN_TIMEOUT_MSEC);
-                conn.setReadTimeout(WS_READ_TIMEOUT_MSEC);
-                conn.setDoOutput(true);
+                long t0 = System.currentTimeMillis();
+                String used = currentToken();
+                conn = http.open("/traffico/transiti", "GET");
                 OutputStreamWriter os = new OutputStreamWriter(conn.getOutputStream());
-                os.write("{\"request\":{\"sessionId\":\"" + token + "\",\"idspira\":" + coilid + ",\"fromData\":\"/Date(" + frTS + ")/\",\"toData\":\"/Date(" + toTS + ")/\"}}\n");
+                os.write("{\"request\":{\"sessionId\":\"" + used + "\",\"idspira\":" + coilid + ",\"fromData\":\"/Date(" + frTS + ")/\",\"toData\":\"/Date(" + toTS + ")/\"}}\n");
                 os.flush();
 
                 int status = conn.getResponseCode();
-                if (http_codes != null) {
-                    http_codes.put(status, http_codes.getOrDefault(status, 0) + 1);
-                }
+                latency = System.currentTimeMillis() - t0;
+                request_seconds.observeMillis(latency);
+                responses.inc(Integer.toString(status));
+                signal = signalOf(status);
 
                 if (status == 401) {
                     // --- AUTHENTICATION ERROR ---
+                    ok = true; // nothing read yet, release() can drain the response and reuse the connection
                     System.out.println("WARN: Received 401 Unauthorized for coil ID " + coilid + ". Attempt " + attempt + "/" + MAX_RETRIES + ". Re-authenticating...");
                     if (attempt == MAX_RETRIES) {
-                         System.out.println("ERROR: Authentication failed after " + MAX_RETRIES + " attempts. Skipping coil " + coilid + ".");
-                         break; // Give up
+                        throw new NotRetrievedException(coilid, "authentication failed after " + MAX_RETRIES + " attempts", status, null);
                     }
-                    this.authenticate(); // Get a new token
-
-                    try {
-                        Thread.sleep(25L * attempt); // Sleep with increasing delay
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                    // Continue to next attempt
+                    expired(used);
+                    refresh(used); // Get a new token, unless another thread already did
+                    // Continue to next attempt (paced by the limiter)
                     continue;
-                } else if (status != 200) {
-                    // --- OTHER ERRORS ---
-                    if (DEBUG || status == 500) {
+                } else if (status == 500) {
+                    // --- NO DATA ---
+                    // the web service answers 500 for windows without events (see README.md)
+                    ok = true;
+                    if (DEBUG) {
                         System.out.println("    +- skipping (response status was " + status + ")");
                     }
-                    // For other errors (e.g., 500), break the retry loop and skip this coil
                     break;
+                } else if (status != 200) {
+                    // --- OTHER ERRORS ---
+                    // the window was not retrieved, the caller decides whether and when to retry
+                    ok = true;
+                    throw new NotRetrievedException(coilid, "response status was " + status, status, null);
                 }
 
                 // --- SUCCESS ---
-                JSONObject response_json = (JSONObject) JSONValue.parse(new InputStreamReader(conn.getInputStream()));
+                // stream the events into the batch, without building the whole response in memory
+                // (copying it to the archive, if enabled)
+                long t1 = System.currentTimeMillis();
+                body = http.body(conn);
+                archived = archive.open(coilid, fr, to);
+                if (archived != null) {
+                    body = archived.tee(body);
+                }
+                TransitParser parser = new TransitParser(new InputStreamReader(body, StandardCharsets.UTF_8));
+                count = parser.parse(batch, chunk_size, consumer);
+                parse_seconds.observeMillis(System.currentTimeMillis() - t1);
+                if (archived != null) {
+                    archived.commit();
+                }
                 os.close();
+                ok = true;
 
-                JSONArray event_list = (JSONArray) response_json.get("Traffico_GetTransitiResult");
                 if (DEBUG) {
-                    System.out.println("    +- got " + event_list.size() + " events");
-                }
-                for (Object event_obj : event_list) {
-                    JSONObject event = (JSONObject) event_obj;
-                    HashMap<String, String> h = new HashMap<>();
-                    h.put("stationcode", "A22:" + event.get("idspira") + ":" + event.get("idsensore"));
-                    h.put("distance", "" + event.get("distanza"));
-                    h.put("headway", "" + event.get("avanzamento"));
-                    h.put("speed", "" + event.get("velocita"));
-                    h.put("length", "" + event.get("lunghezza"));
-                    h.put("axles", "" + event.get("assi"));
-                    h.put("class", "" + event.get("classe"));
-                    h.put("direction", "" + event.get("direzione"));
-                    h.put("country", "" + event.get("idNazionalita"));
-                    h.put("license_plate_initials", "" + event.get("targaIniziali"));
-                    h.put("timestamp", ("" + event.get("data")).substring(6, 16));
-                    h.put("against_traffic", "" + (Boolean) event.get("controsenso"));
-                    output.add(h);
+                    System.out.println("    +- got " + count + " events");
                 }
 
+            } catch (NotRetrievedException e) {
+                throw e;
             } catch (Exception e) {
-                // null pointer or cast exception in case the json hasn't the expected form
-                e.printStackTrace();
-                throw new RuntimeException("could not parse vehicle transit events");
+                // read error or the json hasn't the expected form
+                request_errors.inc();
+                if (e instanceof IOException) {
+                    signal = AdaptiveLimiter.Signal.CONGESTION; // timeout, connection reset, truncated response
+                }
+                throw new NotRetrievedException(coilid, "could not read vehicle transit events (" + e + ")", 0, e);
             } finally {
-                if (conn != null) {
-                    conn.disconnect();
+                if (archived != null) {
+                    archived.close();
+                }
+                if (body != null) {
+                    try {
+                        body.close(); // frees the decompressor, release() takes care of the connection
+                    } catch (IOException ignored) {
+                    }
                 }
+                http.release(conn, ok);
+                limiter.release(signal, latency);
             }
 
-            try {
-                Thread.sleep(25); // sleep a bit to avoid overloading the server
-                break; // Success, exit retry loop
-            } catch (InterruptedException ex) {
-                Thread.currentThread().interrupt();
-            }
+            break; // Success, exit retry loop
         }
 
-        return output;
+        return count;
+    }
+
+    /**
+     * @return how a response status should steer the AdaptiveLimiter
+     */
+    private static AdaptiveLimiter.Signal signalOf(int status) {
+        switch (status) {
+            case 200:
+                return AdaptiveLimiter.Signal.OK;
+            case 429:
+            case 502:
+            case 503:
+            case 504:
+                return AdaptiveLimiter.Signal.CONGESTION;
+            default:
+                // 401, and 500 that the web service returns for windows without data
+                return AdaptiveLimiter.Signal.NEUTRAL;
+        }
     }
 
     private String getLaneText(String lane, String orientation) {
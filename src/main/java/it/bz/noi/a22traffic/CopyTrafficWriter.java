@@ -0,0 +1,254 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * A22 traffic API connector: writes transit events with COPY ... FROM STDIN.
+ *
+ * The rows are encoded into a reusable byte buffer that is streamed to the server
+ * whenever it fills up, so the whole batch is sent as a single COPY operation
+ * instead of one INSERT per row.
+ *
+ * The binary format expects the country column to be of type text
+ * (see a22db.migration.sql).
+ */
+public class CopyTrafficWriter implements TrafficWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte[] BINARY_HEADER = {
+        'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0, // signature
+        0, 0, 0, 0, // flags
+        0, 0, 0, 0  // header extension length
+    };
+
+    private final String[] countries;
+    private final boolean binary;
+    private byte[] buf = new byte[BUFFER_SIZE];
+    private int len = 0;
+    private CopyIn copy;
+
+    public CopyTrafficWriter(String[] countries, boolean binary) {
+        this.countries = countries;
+        this.binary = binary;
+    }
+
+    @Override
+    public void write(Connection db, TransitBatch res, String table) throws SQLException {
+        if (res.isEmpty()) {
+            return;
+        }
+        String sql = "copy " + table + " (" + COLUMNS + ") from stdin" + (binary ? " with (format binary)" : "");
+        copy = db.unwrap(PGConnection.class).getCopyAPI().copyIn(sql);
+        len = 0;
+        try {
+            if (binary) {
+                writeBinary(res);
+            } else {
+                writeText(res);
+            }
+            flush();
+            copy.endCopy();
+        } finally {
+            if (copy.isActive()) {
+                copy.cancelCopy();
+            }
+            copy = null;
+        }
+    }
+
+    private void flush() throws SQLException {
+        if (len > 0) {
+            copy.writeToCopy(buf, 0, len);
+            len = 0;
+        }
+    }
+
+    private void ensure(int n) throws SQLException {
+        if (len + n > buf.length) {
+            flush();
+            if (n > buf.length) {
+                buf = new byte[n];
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // text format: tab separated columns, \N for null
+
+    private void writeText(TransitBatch res) throws SQLException {
+        for (int i = 0; i < res.size(); i++) {
+            textString(res.stationcode(i));
+            textSep();
+            textLong(res.timestamp(i));
+            textSep();
+            textDouble(res.distance(i));
+            textSep();
+            textDouble(res.headway(i));
+            textSep();
+            textDouble(res.length(i));
+            textSep();
+            textLong(res.axles(i));
+            textSep();
+            textAscii(res.againstTraffic(i) ? "t" : "f");
+            textSep();
+            textLong(res.vehicleClass(i));
+            textSep();
+            textDouble(res.speed(i));
+            textSep();
+            textLong(res.direction(i));
+            textSep();
+            textString(TransitBatch.countryCode(countries, res.country(i)));
+            textSep();
+            textString(res.licensePlateInitials(i));
+            ensure(1);
+            buf[len++] = '\n';
+        }
+    }
+
+    private void textSep() throws SQLException {
+        ensure(1);
+        buf[len++] = '\t';
+    }
+
+    private void textLong(long v) throws SQLException {
+        ensure(20);
+        if (v < 0) {
+            buf[len++] = '-';
+            v = -v;
+        }
+        int start = len;
+        do {
+            buf[len++] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        // digits were written in reverse order
+        for (int a = start, b = len - 1; a < b; a++, b--) {
+            byte t = buf[a];
+            buf[a] = buf[b];
+            buf[b] = t;
+        }
+    }
+
+    private void textDouble(double v) throws SQLException {
+        if (v == (long) v && Math.abs(v) < 1e15) {
+            textLong((long) v);
+        } else {
+            textAscii(Double.toString(v));
+        }
+    }
+
+    private void textAscii(String s) throws SQLException {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buf[len++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void textString(String s) throws SQLException {
+        if (s == null) {
+            textAscii("\\N");
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        ensure(2 * b.length);
+        for (byte c : b) {
+            switch (c) {
+                case '\\':
+                    buf[len++] = '\\';
+                    buf[len++] = '\\';
+                    break;
+                case '\t':
+                    buf[len++] = '\\';
+                    buf[len++] = 't';
+                    break;
+                case '\n':
+                    buf[len++] = '\\';
+                    buf[len++] = 'n';
+                    break;
+                case '\r':
+                    buf[len++] = '\\';
+                    buf[len++] = 'r';
+                    break;
+                default:
+                    buf[len++] = c;
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // binary format: see https://www.postgresql.org/docs/current/sql-copy.html
+
+    private void writeBinary(TransitBatch res) throws SQLException {
+        ensure(BINARY_HEADER.length);
+        System.arraycopy(BINARY_HEADER, 0, buf, len, BINARY_HEADER.length);
+        len += BINARY_HEADER.length;
+        for (int i = 0; i < res.size(); i++) {
+            ensure(2);
+            putShort((short) 12);
+            binString(res.stationcode(i));
+            binInt(res.timestamp(i));
+            binDouble(res.distance(i));
+            binDouble(res.headway(i));
+            binDouble(res.length(i));
+            binInt(res.axles(i));
+            ensure(5);
+            putInt(1);
+            buf[len++] = (byte) (res.againstTraffic(i) ? 1 : 0);
+            binInt(res.vehicleClass(i));
+            binDouble(res.speed(i));
+            binInt(res.direction(i));
+            binString(TransitBatch.countryCode(countries, res.country(i)));
+            binString(res.licensePlateInitials(i));
+        }
+        ensure(2);
+        putShort((short) -1);
+    }
+
+    private void binInt(int v) throws SQLException {
+        ensure(8);
+        putInt(4);
+        putInt(v);
+    }
+
+    private void binDouble(double v) throws SQLException {
+        ensure(12);
+        putInt(8);
+        long bits = Double.doubleToLongBits(v);
+        putInt((int) (bits >>> 32));
+        putInt((int) bits);
+    }
+
+    private void binString(String s) throws SQLException {
+        if (s == null) {
+            ensure(4);
+            putInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        ensure(4 + b.length);
+        putInt(b.length);
+        System.arraycopy(b, 0, buf, len, b.length);
+        len += b.length;
+    }
+
+    private void putShort(short v) {
+        buf[len++] = (byte) (v >>> 8);
+        buf[len++] = (byte) v;
+    }
+
+    private void putInt(int v) {
+        buf[len++] = (byte) (v >>> 24);
+        buf[len++] = (byte) (v >>> 16);
+        buf[len++] = (byte) (v >>> 8);
+        buf[len++] = (byte) v;
+    }
+
+}
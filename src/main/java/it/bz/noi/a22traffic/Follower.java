@@ -24,8 +24,16 @@ import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A22 traffic API connector: implements the "follow" operation.
@@ -33,70 +41,82 @@ import java.util.Map;
 public class Follower {
 
     private static final boolean DEBUG = true;
-    // per-coil processing: memory bounded to one coil's data at a time (~1/76th of before)
 
-    public static void fetchNew(Connector conn, String jdbc_url) throws IOException, ClassNotFoundException, SQLException {
+    // a backlog up to this length (seconds) is always fetched in a single request
+    private static final long MAX_SINGLE_WINDOW = 3600;
+
+    // event rates are remembered across iterations
+    private static final WindowSizer sizer = new WindowSizer();
+
+    // SensorRegistry version last written to a22.a22_station(_detail)
+    private static long synced_version = 0;
+
+    // the coils of the last iteration, their partitions and where each coil continues
+    // (after the last window stored or spooled): lets an iteration run without the
+    // database, spooling the windows (see Spool)
+    private static HashMap<String, ArrayList<String>> last_coils = null;
+    private static Partitions last_partitions = null;
+    private static final Map<String, Long> resume = new ConcurrentHashMap<>();
+    // per-coil processing: memory bounded to one coil's data per worker thread
+
+    /**
+     * @return false if the database was unavailable and the windows were spooled
+     */
+    public static boolean fetchNew(Connector conn, String jdbc_url) throws IOException, ClassNotFoundException, SQLException {
 
-        int i;
         PreparedStatement pst;
         ResultSet rs;
 
         // ---------------------------------------------------------------------
-        // connect to the DB
-        Connection db;
-        Class.forName("org.postgresql.Driver");
-        db = DriverManager.getConnection(jdbc_url);
-        db.setAutoCommit(false);
-
-        // ---------------------------------------------------------------------
-        // get the sensors
-        ArrayList<HashMap<String, String>> sensors = conn.getTrafficSensors();
+        // get the sensors (cached across iterations, see SensorRegistry)
+        SensorRegistry.Snapshot registry = SensorRegistry.shared().get(conn);
+        List<HashMap<String, String>> sensors = registry.sensors();
+        String[] countries = registry.countryTable();
         System.out.println("follow mode: number of sensors: " + sensors.size());
 
         // ---------------------------------------------------------------------
-        // for each sensor
-        //  - perform an insert on conflict into table a22.a22_station to store new sensors,
-        //    if there are any, or to update their name or description,
-        //  - idem for table a22.a22_station_detail, where the raw metadata is stored
-        pst = db.prepareStatement("insert into a22.a22_station (code, name, geo) values (?, ?, ?) on conflict (code) " +
-                " do update set name = ?, geo = ?");
-        for (i = 0; i < sensors.size(); i++) {
-            pst.setString(1, sensors.get(i).get("stationcode"));
-            pst.setString(2, sensors.get(i).get("name"));
-            pst.setString(3, sensors.get(i).get("pointprojection"));
-            pst.setString(4, sensors.get(i).get("name"));
-            pst.setString(5, sensors.get(i).get("pointprojection"));
-            pst.execute();
-        }
-        pst.close();
-        pst = db.prepareStatement("insert into a22.a22_station_detail (code, data) values (?, ?) on conflict (code) " +
-                " do update set data = ?");
-        for (i = 0; i < sensors.size(); i++) {
-            pst.setString(1, sensors.get(i).get("stationcode"));
-            pst.setString(2, sensors.get(i).get("raw_metadata"));
-            pst.setString(3, sensors.get(i).get("raw_metadata"));
-            pst.execute();
+        // connect to the DB and store the windows spooled while it was unavailable;
+        // if it still is, continue from the last iteration and spool
+        Connection db = null;
+        Class.forName("org.postgresql.Driver");
+        try {
+            db = DriverManager.getConnection(jdbc_url);
+            db.setAutoCommit(false);
+            Spool.shared().drain(jdbc_url, countries);
+        } catch (SQLException e) {
+            if (!Spool.shared().isEnabled() || last_coils == null || !Pipeline.unavailable(e)) {
+                throw e;
+            }
+            System.out.println("follow mode: database unavailable (" + e.getMessage() + "), spooling this iteration");
+            if (db != null) {
+                try {
+                    db.close();
+                } catch (SQLException ignored) {
+                }
+            }
+            fetchOffline(conn, jdbc_url, countries);
+            return false;
         }
-        pst.close();
-        db.commit();
 
-        System.out.println("follow mode: sensor data and metadata updated");
+        // ---------------------------------------------------------------------
+        // unless the sensor list is unchanged since the last iteration, bring
+        // table a22.a22_station (new sensors, name or description changes) and
+        // table a22.a22_station_detail (raw metadata) up to date, writing only
+        // the rows that differ from the stored ones
+        if (registry.version != synced_version) {
+            int[] written = Stations.syncStations(db, sensors);
+            db.commit();
+            synced_version = registry.version;
+            System.out.println("follow mode: sensor data and metadata updated (" + written[0] + " stations, " + written[1] + " details written)");
+        } else {
+            System.out.println("follow mode: sensor data and metadata unchanged");
+        }
 
         // ---------------------------------------------------------------------
-        // reshape sensors, so we get a list of sensors associated to each coilid
+        // the list of sensors associated to each coilid (a copy, ghosts are added below)
         HashMap<String, ArrayList<String>> coils = new HashMap<>();
-        for (i = 0; i < sensors.size(); i++) {
-            // stationcode = A22:coilid:sensorid
-            String split[] = sensors.get(i).get("stationcode").split(":");
-            if (split.length != 3) {
-                System.out.println("skipping wrong format station code: " + sensors.get(i).get("stationcode"));
-                continue;
-            }
-            String coilid = split[1];
-            if (coils.get(coilid) == null) {
-                coils.put(coilid, new ArrayList<>());
-            }
-            coils.get(coilid).add(sensors.get(i).get("stationcode"));
+        for (Map.Entry<String, List<String>> e : registry.coils().entrySet()) {
+            coils.put(e.getKey(), new ArrayList<>(e.getValue()));
         }
         
         // ---------------------------------------------------------------------
@@ -127,140 +147,299 @@ public class Follower {
         System.out.println("follow mode: ghost sensor count: " + ghost_sensor_cnt);
         
         // ---------------------------------------------------------------------
-        // for each coilid, get the max(timestamp) among its sensors (going back up to one week)
-        // also create a fast sensor lookup list 
-        HashMap<String, Integer> coils_ts = new HashMap<>();
+        // for each coilid, resume right after its checkpoint (see Checkpoints)
+        // also create a fast sensor lookup list
+        HashMap<String, Long> coils_ts = new HashMap<>();
         HashMap<String, Integer> sensor_known = new HashMap<>();
-        long cap = Instant.now().getEpochSecond() - 7 * 24 * 60 * 60;
-        System.out.println("follow mode: getting max(timestamp) for each sensor capped at " + cap);
-        pst = db.prepareStatement("select coalesce(max(timestamp)," + cap + ") from a22.a22_traffic where stationcode = ? and timestamp > " + cap);
+        for (ArrayList<String> l : coils.values()) {
+            for (String c : l) {
+                sensor_known.put(c, 1);
+            }
+        }
+        Map<String, Long> checkpoints = Checkpoints.load(db, Collections.singletonList(Checkpoints.FOLLOW));
+        db.commit();
+        // in idempotent mode, the last minutes before the checkpoint are retrieved again
+        // to pick up events the web service published late; those already stored are dropped
+        long overlap = IdempotentTrafficWriter.enabled() ? Config.getLong("A22_FOLLOW_OVERLAP_SEC", 300) : 0;
+        ArrayList<String> codes = new ArrayList<>();
         for (String coilid : coils.keySet()) {
-            if (DEBUG) {
-                System.out.println("coil id: " + coilid);
-                System.out.print("  +- ");
+            Long cp = checkpoints.get(Checkpoints.key(Checkpoints.FOLLOW, coilid));
+            if (cp != null) {
+                coils_ts.put(coilid, cp + 1 - overlap);
+            } else {
+                codes.addAll(coils.get(coilid));
             }
-            int max = 0;
-            for (String c : coils.get(coilid)) {
-                if (DEBUG) {
-                    System.out.print(c + " ");
+        }
+        System.out.println("follow mode: resuming " + coils_ts.size() + " coils from their checkpoint");
+
+        // coils without a checkpoint yet (first run, new coils): get the max(timestamp)
+        // among its sensors (going back up to one week)
+        //
+        // all sensors are resolved with a single query: the max_timestamp maintained in
+        // a22.a22_station is used as a starting point and only newer rows are probed in
+        // a22.a22_traffic (an index lookup that normally finds nothing); only sensors without
+        // a cached value (e.g. ghost sensors) fall back to scanning the last week
+        if (!codes.isEmpty()) {
+            HashMap<String, Integer> sensor_ts = new HashMap<>();
+            long cap = Instant.now().getEpochSecond() - 7 * 24 * 60 * 60;
+            System.out.println("follow mode: getting max(timestamp) for " + codes.size() + " sensors without checkpoint capped at " + cap);
+            long t_wm = System.currentTimeMillis();
+            pst = db.prepareStatement(
+                    "select v.code, coalesce((select max(t.timestamp) from a22.a22_traffic t where t.stationcode = v.code and t.timestamp > v.ts), v.ts) " +
+                    "from (select c.code, greatest(?, coalesce(s.max_timestamp, 0)) as ts " +
+                    "      from unnest(?::text[]) as c(code) left join a22.a22_station s on s.code = c.code) v");
+            pst.setInt(1, (int) cap); // uhm year 2038 problem... but the db has an int field anyway
+            pst.setArray(2, db.createArrayOf("text", codes.toArray()));
+            rs = pst.executeQuery();
+            while (rs.next()) {
+                sensor_ts.put(rs.getString(1), rs.getInt(2));
+            }
+            rs.close();
+            pst.close();
+            db.commit();
+            for (String coilid : coils.keySet()) {
+                if (coils_ts.containsKey(coilid)) {
+                    continue;
                 }
-                pst.setString(1, c);
-                rs = pst.executeQuery();
-                rs.next();
-                int t = rs.getInt(1);
-                if (t > max) {
-                    max = t;
+                int max = (int) cap;
+                for (String c : coils.get(coilid)) {
+                    max = Math.max(max, sensor_ts.getOrDefault(c, (int) cap));
                 }
-                sensor_known.put(c, 1);
-            }
-            if (max == 0) {
-                max = (int)cap; // uhm year 2038 problem... but the db has an int field anyway
-            }
-            max = max + 1;
-            if (DEBUG) {
-                System.out.print(" -> max ts = " + max);
-                System.out.println();
-            } else {
-                System.out.print(".");
-                System.out.flush();
+                max = max + 1;
+                if (DEBUG) {
+                    System.out.println("coil id: " + coilid);
+                    System.out.println("  +- " + String.join(" ", coils.get(coilid)) + " -> max ts = " + max);
+                }
+                coils_ts.put(coilid, max - overlap);
             }
-            coils_ts.put(coilid, max);
+            System.out.println("follow mode: got max(timestamp) for " + sensor_ts.size() + " sensors in " + (System.currentTimeMillis() - t_wm) + " ms");
         }
-        pst.close();
-        db.commit();
-        if (!DEBUG) {
-            System.out.println();
+
+        // retrieve data until now - 5 min
+        long ts_to = Instant.now().getEpochSecond() - 60 * 5;
+
+        // make sure the partitions exist, including the next one so it is ready in time
+        Partitions partitions = Partitions.load(db);
+        long min_fr = ts_to;
+        for (long fr : coils_ts.values()) {
+            min_fr = Math.min(min_fr, fr);
         }
+        partitions.ensure(db, min_fr, partitions.period(ts_to)[1]);
 
-        // ---------------------------------------------------------------------
-        // per-coil fetch: process one coil at a time, insert and commit after each.
-        // Memory bounded to one coil's data at a time (~1/76th of all coils).
+        last_coils = coils;
+        last_partitions = partitions;
+        resume.clear();
+        resume.putAll(coils_ts);
 
-        ArrayList<HashMap<String, String>> res;
-        HashMap<String, Integer> detected_ghosts = new HashMap<>();
-        Map<String, long[]> stationTimeBounds = new HashMap<>();
-        Map<String, String> countries = conn.getCountries();
-        long totalRecords = 0;
-        long totalRetrieveMs = 0;
-        long totalStoreMs = 0;
+        Exception failure = fetchCoils(conn, jdbc_url, countries, coils, coils_ts, sensor_known, partitions, ts_to, db);
 
-        // retrieve data until now - 5 min
-        long ts_to = Instant.now().getEpochSecond() - 60 * 5;
+        // ---------------------------------------------------------------------
+        // disconnect from Postgres
+        db.close();
 
-        System.out.println("follow mode: getting events for " + coils.size() + " coils");
+        rethrow(failure);
+        return true;
+    }
 
-        int coilNum = 0;
-        for (String coilid : coils.keySet()) {
-            coilNum++;
-            long fr = coils_ts.get(coilid);
+    /**
+     * An iteration while the database is unavailable: the coils of the last iteration
+     * are fetched from where they stopped and all windows are spooled.
+     */
+    private static void fetchOffline(Connector conn, String jdbc_url, String[] countries) throws IOException, ClassNotFoundException, SQLException {
+        HashMap<String, Long> coils_ts = new HashMap<>(resume);
+        HashMap<String, Integer> sensor_known = new HashMap<>();
+        for (ArrayList<String> l : last_coils.values()) {
+            for (String c : l) {
+                sensor_known.put(c, 1);
+            }
+        }
+        long ts_to = Instant.now().getEpochSecond() - 60 * 5;
+        rethrow(fetchCoils(conn, jdbc_url, countries, last_coils, coils_ts, sensor_known, last_partitions, ts_to, null));
+    }
 
-            System.out.println("follow mode: coil " + coilid + " (" + coilNum + "/" + coils.size() + "): fetching from " + ZonedDateTime.ofInstant(Instant.ofEpochSecond(fr), ZoneOffset.UTC) + " to " + ZonedDateTime.ofInstant(Instant.ofEpochSecond(ts_to), ZoneOffset.UTC));
+    /**
+     * Per-coil fetch: coils are fetched concurrently on a bounded pool of
+     * worker threads and handed to the writer threads of a Pipeline, that
+     * store and commit each coil on its own, advancing its checkpoint.
+     * Normally a single window per coil; after an outage the backlog is
+     * fetched in windows sized like in bulk mode.
+     * Memory bounded to one window's data per worker thread and queue slot.
+     *
+     * @param db the connection used to record ghost sensors and station timestamps,
+     *           null to spool all windows instead
+     *
+     * @return the first failure, if any
+     */
+    private static Exception fetchCoils(Connector conn, String jdbc_url, String[] countries, Map<String, ArrayList<String>> coils, Map<String, Long> coils_ts,
+            Map<String, Integer> sensor_known, Partitions partitions, long ts_to, Connection db) throws ClassNotFoundException, SQLException {
+
+        int thread_count = Config.getInt("A22_FOLLOW_THREADS", 4);
+        Map<String, Integer> detected_ghosts = new ConcurrentHashMap<>();
+        Map<String, long[]> stationTimeBounds = new ConcurrentHashMap<>();
+        AtomicLong totalRecords = new AtomicLong();
+        AtomicLong totalRetrieveMs = new AtomicLong();
+        AtomicLong totalStoreMs = new AtomicLong();
+        AtomicInteger coilNum = new AtomicInteger();
+        AtomicReference<Exception> storeFailure = new AtomicReference<>();
+
+        System.out.println("follow mode: getting events for " + coils.size() + " coils ("
+                + (VirtualThreads.enabled() ? "virtual threads, up to " + VirtualThreads.maxInflight() : thread_count + " threads") + ")");
+
+        long t_start = System.currentTimeMillis();
+        Pipeline pipeline = new Pipeline("follow", jdbc_url, countries, partitions, new Pipeline.Listener() {
+            @Override
+            public void stored(Pipeline.Item item, long store_ms) {
+                TransitBatch res = item.batch;
+                for (int k = 0; k < res.size(); k++) {
+                    String stationcode = res.stationcode(k);
+                    if (!sensor_known.containsKey(stationcode)) {
+                        detected_ghosts.put(stationcode, 1);
+                    }
+
+                    // min and max timestamp handling
+                    long ts = res.timestamp(k);
+                    stationTimeBounds.merge(stationcode, new long[] { ts, ts }, (bounds, t) -> {
+                        bounds[0] = Math.min(bounds[0], t[0]);  // min timestamp
+                        bounds[1] = Math.max(bounds[1], t[1]);  // max timestamp
+                        return bounds;
+                    });
+                }
+                resume.put(item.coil, item.to + 1);
+                totalRecords.addAndGet(res.size());
+                totalStoreMs.addAndGet(store_ms);
+                System.out.println("follow mode: coil " + item.coil + ": " + res.size() + " records stored (store " + store_ms + " ms)");
+            }
 
-            long t0 = System.currentTimeMillis();
-            res = conn.getVehiclesForCoil(coilid, fr, ts_to);
-            long t1 = System.currentTimeMillis();
+            @Override
+            public void failed(Pipeline.Item item, Exception e) {
+                storeFailure.compareAndSet(null, e);
+            }
+        });
+        if (db == null) {
+            pipeline.spoolAll();
+        }
+        ExecutorService pool = VirtualThreads.enabled() ? VirtualThreads.newExecutor() : Executors.newFixedThreadPool(thread_count);
+        RetryQueue retries = new RetryQueue("follow", pool);
+        CircuitBreaker breaker = CircuitBreaker.shared();
+        AtomicReference<Exception> fetchFailure = new AtomicReference<>();
+
+        // fetch a coil from fr to ts_to; a window that cannot be retrieved ends the task,
+        // which is retried later from that window on (see RetryQueue)
+        class CoilTask implements Runnable {
+            final String coilid;
+            final long start;
+            final int attempt;
+
+            CoilTask(String coilid, long start, int attempt) {
+                this.coilid = coilid;
+                this.start = start;
+                this.attempt = attempt;
+            }
 
-            pst = db.prepareStatement(
-                    "insert into a22.a22_traffic "
-                    + "(stationcode, timestamp, distance, headway, length, axles, against_traffic, class, speed, direction, country, license_plate_initials) "
-                    + "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
-            for (i = 0; i < res.size(); i++) {
-                String s = res.get(i).get("stationcode");
-                if (!sensor_known.containsKey(s)) {
-                    detected_ghosts.put(s, 1);
+            @Override
+            public void run() {
+                int n = attempt == 0 ? coilNum.incrementAndGet() : 0;
+                if (attempt == 0) {
+                    System.out.println("follow mode: coil " + coilid + " (" + n + "/" + coils.size() + "): fetching from " + ZonedDateTime.ofInstant(Instant.ofEpochSecond(start), ZoneOffset.UTC) + " to " + ZonedDateTime.ofInstant(Instant.ofEpochSecond(ts_to), ZoneOffset.UTC));
+                }
+                if (breaker.blockedFor(coilid) > 0) {
+                    // no data is lost, the next iteration starts from the checkpoint again
+                    System.out.println("follow mode: coil " + coilid + ": skipped, circuit breaker open");
+                    return;
                 }
 
-                // min and max timestamp handling
-                String stationcode = res.get(i).get("stationcode");
-                long ts = Long.parseLong(res.get(i).get("timestamp"));
-
-                long[] bounds = stationTimeBounds.getOrDefault(stationcode, new long[] { Long.MAX_VALUE, Long.MIN_VALUE });
-                bounds[0] = Math.min(bounds[0], ts);  // min timestamp
-                bounds[1] = Math.max(bounds[1], ts);  // max timestamp
-                stationTimeBounds.put(stationcode, bounds);
-
-                pst.setString(1, stationcode);
-                pst.setInt(2, Integer.parseInt(res.get(i).get("timestamp")));
-                pst.setDouble(3, Double.parseDouble(res.get(i).get("distance")));
-                pst.setDouble(4, Double.parseDouble(res.get(i).get("headway")));
-                pst.setDouble(5, Double.parseDouble(res.get(i).get("length")));
-                pst.setInt(6, Integer.parseInt(res.get(i).get("axles")));
-                pst.setBoolean(7, Boolean.parseBoolean(res.get(i).get("against_traffic")));
-                pst.setInt(8, Integer.parseInt(res.get(i).get("class")));
-                pst.setDouble(9, Double.parseDouble(res.get(i).get("speed")));
-                pst.setInt(10, Integer.parseInt(res.get(i).get("direction")));
-                pst.setString(11, countries.get(res.get(i).get("country")));
-                pst.setString(12, "".equals(res.get(i).get("license_plate_initials")) ? null: res.get(i).get("license_plate_initials"));
-                pst.addBatch();
+                long fr = start;
+                while (fr <= ts_to && !pipeline.isBroken(Checkpoints.FOLLOW, coilid)) {
+                    long remaining = ts_to - fr + 1;
+                    long to = fr + (remaining <= MAX_SINGLE_WINDOW ? remaining : Math.min(remaining, sizer.next(coilid))) - 1;
+
+                    long t0 = System.currentTimeMillis();
+                    TransitBatch res;
+                    try {
+                        res = conn.getVehiclesForCoil(coilid, fr, to);
+                    } catch (IOException | RuntimeException e) {
+                        breaker.failure(coilid);
+                        System.out.println("follow mode: coil " + coilid + " interval " + fr + " .. " + to + " not retrieved (attempt " + (attempt + 1) + "): " + e.getMessage());
+                        if (!retries.retry(attempt + 1, 0, new CoilTask(coilid, fr, attempt + 1))) {
+                            fetchFailure.compareAndSet(null, e);
+                        }
+                        return;
+                    }
+                    long t1 = System.currentTimeMillis();
+                    breaker.success(coilid);
+                    totalRetrieveMs.addAndGet(t1 - t0);
+                    sizer.observe(coilid, to - fr + 1, res.size());
+
+                    System.out.println("follow mode: coil " + coilid + ": " + res.size() + " records retrieved up to " + to + " (retrieve " + (t1 - t0) + " ms)");
+                    try {
+                        pipeline.put(new Pipeline.Item(Checkpoints.FOLLOW, coilid, fr, to, res), t1 - t0);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        fetchFailure.compareAndSet(null, e);
+                        return;
+                    }
+                    fr = to + 1;
+                }
             }
-            pst.executeBatch();
-            pst.close();
-            db.commit();
-            long t2 = System.currentTimeMillis();
+        }
 
-            totalRecords += res.size();
-            totalRetrieveMs += (t1 - t0);
-            totalStoreMs += (t2 - t1);
+        for (String coilid : coils.keySet()) {
+            retries.submit(new CoilTask(coilid, coils_ts.get(coilid), 0));
+        }
 
-            System.out.println("follow mode: coil " + coilid + " (" + coilNum + "/" + coils.size() + "): " + res.size() + " records (retrieve " + (t1 - t0) + " ms, store " + (t2 - t1) + " ms)");
+        // wait for all coils, including retries (coils that completed stay committed)
+        Exception failure = null;
+        try {
+            retries.awaitIdle();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        }
+        retries.close();
+        pool.shutdownNow();
+        if (failure == null) {
+            failure = fetchFailure.get();
+        }
+        try {
+            pipeline.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        if (failure == null) {
+            failure = storeFailure.get();
+        }
+        long t_end = System.currentTimeMillis();
+
+        // ghost sensors and station timestamps of spooled windows are recorded when
+        // they are drained (or detected again)
+        if (db != null) {
+            PreparedStatement pst = db.prepareStatement("insert into a22.a22_ghost_station (code) values (?)");
+            for (String s : detected_ghosts.keySet()) {
+                pst.setString(1, s);
+                pst.execute();
+            }
+            pst.close();
+            db.commit();
 
-        pst = db.prepareStatement("insert into a22.a22_ghost_station (code) values (?)");
-        for (String s : detected_ghosts.keySet()) {
-            pst.setString(1, s);
-            pst.execute();
+            // flush min and max timestamps
+            Stations.updateStationTimestamps(jdbc_url, stationTimeBounds);
         }
-        pst.close();
-        db.commit();
 
-        // flush min and max timestamps
-        Stations.updateStationTimestamps(jdbc_url, stationTimeBounds);
+        System.out.println("follow mode: " + totalRecords + " records total (retrieve " + totalRetrieveMs + " ms, store " + totalStoreMs + " ms, wall time " + (t_end - t_start) + " ms), new ghost sensors detected: " + detected_ghosts.size());
 
-        System.out.println("follow mode: " + totalRecords + " records total (retrieve " + totalRetrieveMs + " ms, store " + totalStoreMs + " ms), new ghost sensors detected: " + detected_ghosts.size());
+        return failure;
+    }
 
-        // ---------------------------------------------------------------------
-        // disconnect from Postgres
-        db.close();
+    private static void rethrow(Exception failure) throws IOException, SQLException {
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof SQLException) {
+            throw (SQLException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new RuntimeException("follow mode: failed to process all coils", failure);
+        }
 
     }
 
@@ -0,0 +1,272 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A22 traffic API connector: HTTP transport with connection reuse.
+ *
+ * The JDK keeps idle HTTP/1.1 connections in a keep-alive cache and reuses them
+ * for the next request to the same host, as long as the previous response has been
+ * read completely and its stream has been closed (and disconnect() has not been
+ * called). release() takes care of that, so consecutive requests to the A22 web
+ * service do not pay for a new TCP and TLS handshake each.
+ *
+ * The size of the cache (idle connections per host) is A22_HTTP_MAX_CONNECTIONS.
+ *
+ * Unless A22_HTTP_COMPRESSION is false, compressed responses (gzip or deflate) are
+ * accepted; body() decompresses them while they are read, so the decompressed
+ * response is never held in memory. Servers that ignore Accept-Encoding answer
+ * uncompressed, which body() passes through. The stream returned by body() must be
+ * closed (before release()): that frees the native memory of the decompressor, but
+ * leaves the connection's stream open for release().
+ */
+public class HttpTransport {
+
+    private static final int WS_CONN_TIMEOUT_MSEC = 30000;
+    private static final int WS_READ_TIMEOUT_MSEC = 1800000;
+
+    static {
+        // must be set before the first connection is made, the JDK reads it only once
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", "" + Config.getInt("A22_HTTP_MAX_CONNECTIONS", 32));
+        }
+    }
+
+    private static final boolean compression = Config.getBoolean("A22_HTTP_COMPRESSION", true);
+
+    private static final Metrics.Counter received_bytes = Metrics.counter("a22_http_received_bytes_total", "Response body bytes received, by content encoding", "encoding");
+    private static final Metrics.Counter decoded_bytes = Metrics.counter("a22_http_decoded_bytes_total", "Response body bytes after decompression");
+
+    private static final AtomicLong requests = new AtomicLong();
+    private static final CountingSSLSocketFactory ssl_factory = new CountingSSLSocketFactory();
+
+    private final String url;
+
+    public HttpTransport(String url) {
+        this.url = url;
+    }
+
+    /**
+     * Open a connection for a request to url + path with the usual headers set.
+     */
+    public HttpURLConnection open(String path, String method) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) (new URL(url + path)).openConnection();
+        if (conn instanceof HttpsURLConnection) {
+            // always the same factory instance, otherwise cached connections are not reused
+            ((HttpsURLConnection) conn).setSSLSocketFactory(ssl_factory);
+        }
+        conn.setRequestMethod(method);
+        conn.setRequestProperty("Content-Type", "application/json");
+        conn.setRequestProperty("User-Agent", "IDM/traffic_a22");
+        conn.setRequestProperty("Accept", "*/*");
+        if (compression) {
+            conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        }
+        conn.setConnectTimeout(WS_CONN_TIMEOUT_MSEC);
+        conn.setReadTimeout(WS_READ_TIMEOUT_MSEC);
+        conn.setDoOutput(true);
+        requests.incrementAndGet();
+        return conn;
+    }
+
+    /**
+     * @return the response body of a successful request, decompressed as it is read
+     *         according to its Content-Encoding; close it when done
+     */
+    public InputStream body(HttpURLConnection conn) throws IOException {
+        String encoding = conn.getContentEncoding();
+        encoding = encoding == null ? "identity" : encoding.trim().toLowerCase();
+        InputStream raw = new Counting(conn.getInputStream(), received_bytes, encoding) {
+            @Override
+            public void close() {
+                // left to release(), which drains the stream so the connection can be reused
+            }
+        };
+        InputStream in;
+        switch (encoding) {
+            case "identity":
+                in = raw;
+                break;
+            case "gzip":
+            case "x-gzip":
+                in = new GZIPInputStream(raw, 8192);
+                break;
+            case "deflate":
+                // should be zlib-wrapped (RFC 1950), but some servers send raw deflate data
+                BufferedInputStream b = new BufferedInputStream(raw, 8192);
+                b.mark(2);
+                int cmf = b.read();
+                int flg = b.read();
+                b.reset();
+                boolean zlib = cmf >= 0 && flg >= 0 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+                in = new InflaterInputStream(b, new Inflater(!zlib), 8192) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inf.end(); // not done by InflaterInputStream for an Inflater passed in
+                        }
+                    }
+                };
+                break;
+            default:
+                throw new IOException("unsupported content encoding " + encoding);
+        }
+        return new Counting(in, decoded_bytes, "");
+    }
+
+    /**
+     * Counts the bytes read.
+     */
+    private static class Counting extends FilterInputStream {
+
+        private final Metrics.Counter counter;
+        private final String label;
+
+        Counting(InputStream in, Metrics.Counter counter, String label) {
+            super(in);
+            this.counter = counter;
+            this.label = label;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c >= 0) {
+                counter.add(label, 1);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                counter.add(label, n);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Finish a request: read whatever is left of the response and close the stream,
+     * so the connection goes back into the keep-alive cache.
+     *
+     * @param ok false if the request failed in the middle of the response, in that
+     *           case the connection is not reused
+     */
+    public void release(HttpURLConnection conn, boolean ok) {
+        if (conn == null) {
+            return;
+        }
+        if (!ok) {
+            conn.disconnect();
+            return;
+        }
+        InputStream in;
+        try {
+            in = conn.getResponseCode() >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        } catch (IOException e) {
+            in = conn.getErrorStream();
+        }
+        if (in == null) {
+            return;
+        }
+        try {
+            byte[] buf = new byte[4096];
+            while (in.read(buf) >= 0) {
+                // discard
+            }
+            in.close();
+        } catch (IOException e) {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * @return requests made, connections opened and connections reused so far (all instances)
+     */
+    public static String stats() {
+        long req = requests.get();
+        if (ssl_factory.created.get() == 0) {
+            // plain http: the JDK does not tell whether a connection was reused
+            return req + " requests";
+        }
+        long miss = ssl_factory.created.get();
+        return req + " requests, pool hits " + Math.max(0, req - miss) + ", pool misses (new connections) " + miss;
+    }
+
+    /**
+     * Delegates to the default SSLSocketFactory, counting the sockets created.
+     */
+    private static class CountingSSLSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory delegate = HttpsURLConnection.getDefaultSSLSocketFactory();
+        private final AtomicLong created = new AtomicLong();
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            created.incrementAndGet();
+            return delegate.createSocket();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            created.incrementAndGet();
+            return delegate.createSocket(s, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            created.incrementAndGet();
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            created.incrementAndGet();
+            return delegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            created.incrementAndGet();
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            created.incrementAndGet();
+            return delegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+
+}
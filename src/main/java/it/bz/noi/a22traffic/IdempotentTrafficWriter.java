@@ -0,0 +1,75 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A22 traffic API connector: writes transit events so that events already stored
+ * are skipped (A22_IDEMPOTENT=true).
+ *
+ * The batch is first written into a temporary staging table by the writer selected
+ * with A22_WRITER (so COPY is still used by default), then moved into the target
+ * table with a single insert ... select ... on conflict do nothing statement, relying
+ * on the unique index a22_traffic_natural_key_ux (see a22db.migration-3.sql).
+ */
+public class IdempotentTrafficWriter implements TrafficWriter {
+
+    private static final String STAGING = "a22_traffic_staging";
+
+    private final TrafficWriter staging_writer;
+    private Connection prepared;
+
+    /**
+     * @param staging_writer the writer used to fill the staging table
+     */
+    public IdempotentTrafficWriter(TrafficWriter staging_writer) {
+        this.staging_writer = staging_writer;
+    }
+
+    /**
+     * @return true if A22_IDEMPOTENT is set
+     */
+    public static boolean enabled() {
+        return Config.getBoolean("A22_IDEMPOTENT", false);
+    }
+
+    @Override
+    public void write(Connection db, TransitBatch res, String table) throws SQLException, IOException {
+        if (res.isEmpty()) {
+            return;
+        }
+        if (db != prepared) {
+            prepare(db);
+        }
+        staging_writer.write(db, res, STAGING);
+        Statement stm = db.createStatement();
+        stm.executeUpdate("insert into " + table + " (" + COLUMNS + ") select " + COLUMNS + " from " + STAGING + " on conflict do nothing");
+        stm.execute("truncate " + STAGING);
+        stm.close();
+    }
+
+    /**
+     * Check for the unique index and create the staging table, once per connection.
+     */
+    private void prepare(Connection db) throws SQLException {
+        Statement stm = db.createStatement();
+        ResultSet rs = stm.executeQuery("select 1 from pg_indexes where schemaname = 'a22' and indexname = 'a22_traffic_natural_key_ux'");
+        boolean found = rs.next();
+        rs.close();
+        if (!found) {
+            stm.close();
+            throw new RuntimeException("A22_IDEMPOTENT needs the unique index a22.a22_traffic_natural_key_ux (see a22db.migration-3.sql)");
+        }
+        stm.execute("create temporary table if not exists " + STAGING + " (like a22.a22_traffic including defaults)");
+        stm.close();
+        prepared = db;
+    }
+
+}
@@ -0,0 +1,49 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A22 traffic API connector: writes transit events with batched INSERT statements.
+ *
+ * This is the original storage path, kept as a fallback (A22_WRITER=insert).
+ */
+public class InsertTrafficWriter implements TrafficWriter {
+
+    private final String[] countries;
+
+    public InsertTrafficWriter(String[] countries) {
+        this.countries = countries;
+    }
+
+    @Override
+    public void write(Connection db, TransitBatch res, String table) throws SQLException {
+        PreparedStatement ins = db.prepareStatement(
+                "insert into " + table + " "
+                + "(" + COLUMNS + ") "
+                + "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        for (int i = 0; i < res.size(); i++) {
+            ins.setString(1, res.stationcode(i));
+            ins.setInt(2, res.timestamp(i));
+            ins.setDouble(3, res.distance(i));
+            ins.setDouble(4, res.headway(i));
+            ins.setDouble(5, res.length(i));
+            ins.setInt(6, res.axles(i));
+            ins.setBoolean(7, res.againstTraffic(i));
+            ins.setInt(8, res.vehicleClass(i));
+            ins.setDouble(9, res.speed(i));
+            ins.setInt(10, res.direction(i));
+            ins.setString(11, TransitBatch.countryCode(countries, res.country(i)));
+            ins.setString(12, res.licensePlateInitials(i));
+            ins.addBatch();
+        }
+        ins.executeBatch();
+        ins.close();
+    }
+
+}
@@ -15,6 +15,9 @@
 package it.bz.noi.a22traffic;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
@@ -26,7 +29,7 @@ import java.util.*;
 /**
  * A22 traffic API connector: CLI.
  *
- * Usage: java -jar A22TrafficConnector.jar { month <year> <month> | interval <start_ts> <end_ts> | follow }
+ * Usage: java -jar A22TrafficConnector.jar { month <year> <month> | interval <start_ts> <end_ts> | backfill <start_ts> <end_ts> | replay <dir> | follow }
  *
  * The following system properties must be set: JDBC_ENDPOINT, JDBC_DBNAME, JDBC_USERNAME, JDBC_PASSWORD.
  */
@@ -46,12 +49,14 @@ public class Main {
         // ---------------------------------------------------------------------
         // parse and validate arguments
         if (args.length == 0) {
-            System.err.println("ERROR: expected arguments: { month <year> <month> | interval <start_ts> <end_ts> | follow }");
+            System.err.println("ERROR: expected arguments: { month <year> <month> | interval <start_ts> <end_ts> | backfill <start_ts> <end_ts> | replay <dir> | follow }");
             return;
         }
         long epoch_start = 0;
         long epoch_end = 0;
         boolean follow = false;
+        boolean backfill = false;
+        Path replay_dir = null;
 
         switch (args[0]) {
             case "month":
@@ -83,6 +88,7 @@ public class Main {
                 System.out.println("end:   " + epoch_end);
                 break;
             case "interval":
+            case "backfill":
                 long start,
                  end;
                 try {
@@ -93,13 +99,22 @@ public class Main {
                     end = 0;
                 }
                 if (start < 631152000L /* 1990 */ || end > 4102444800L /* 2100 */ || start > end) {
-                    System.err.println("ERROR: missing or invalid arguments after 'interval'");
+                    System.err.println("ERROR: missing or invalid arguments after '" + args[0] + "'");
                     return;
                 }
-                System.out.println("args: interval " + start + " " + end);
+                System.out.println("args: " + args[0] + " " + start + " " + end);
+                backfill = args[0].equals("backfill");
                 epoch_start = start;
                 epoch_end = end;
                 break;
+            case "replay":
+                if (args.length < 2 || !Files.isDirectory(Paths.get(args[1]))) {
+                    System.err.println("ERROR: missing or invalid directory after 'replay'");
+                    return;
+                }
+                System.out.println("args: replay " + args[1]);
+                replay_dir = Paths.get(args[1]);
+                break;
             case "follow":
                 follow = true;
                 break;
@@ -116,6 +131,23 @@ public class Main {
             return;
         }
 
+        // ---------------------------------------------------------------------
+        // store the archived responses again (argument "replay"), without the web service
+        if (replay_dir != null) {
+            Metrics.start();
+            try {
+                int threads = Config.getInt("A22_REPLAY_THREADS", Runtime.getRuntime().availableProcessors());
+                Map<String, long[]> result = new Replay(jdbc_url, replay_dir, threads).run();
+
+                // flush min and max timestamps
+                Stations.updateStationTimestamps(jdbc_url, result);
+            } finally {
+                Metrics.stop();
+            }
+            System.out.println("A22TrafficConnector exited at " + ZonedDateTime.now());
+            return;
+        }
+
         // ---------------------------------------------------------------------
         // connect to the DB to get the A22 web service credentials
         String a22_url = null;
@@ -151,81 +183,80 @@ public class Main {
         }
 
         // ---------------------------------------------------------------------
-        // start work according to the selected mode of operation
-        if (follow) {
-
-            // enter an infinite loop, fetching new data (argument "follow")
-            long iteration = 0;
-            while (true) {
-
-                try {
-                    iteration++;
-                    
-                    System.out.println(ZonedDateTime.now() + " A22TrafficConnector follow mode: woke up (iteration " + iteration + ")");
-
-                    // connect to A22 web service
-                    Connector conn = new Connector(a22_url, a22_auth_json);
-
-                    Follower.fetchNew(conn, jdbc_url);
+        // serve the metrics, if A22_METRICS_PORT is set
+        Metrics.start();
 
-                    // disconnect from A22 service
-                    conn.close();
+        try {
+            // ---------------------------------------------------------------------
+            // start work according to the selected mode of operation
+            if (follow) {
 
-                } catch (IOException | ClassNotFoundException | SQLException | RuntimeException e) {
-                    System.out.println("something went wrong (" + e.getMessage() + ") - will go to sleep anyway");
-                    // intentionally non-fatal
-                }
+                // enter an infinite loop, fetching new data (argument "follow")
+                long iteration = 0;
+                while (true) {
 
-                System.out.println(ZonedDateTime.now() + " A22TrafficConnector follow mode: going to sleep");
+                    try {
+                        iteration++;
+                    
+                        System.out.println(ZonedDateTime.now() + " A22TrafficConnector follow mode: woke up (iteration " + iteration + ")");
+
+                        // connect to A22 web service
+                        Connector conn = new Connector(a22_url, a22_auth_json);
+
+                        try {
+                            boolean online = Follower.fetchNew(conn, jdbc_url);
+
+                            // repair gaps found in the recent past, within a time budget (see Backfill);
+                            // not while the database is unavailable
+                            if (online) {
+                                Backfill.shared().runRound(conn, jdbc_url);
+                            }
+                        } finally {
+                            // disconnect from A22 service, also after errors (one session per iteration)
+                            conn.close();
+                        }
+
+                    } catch (IOException | ClassNotFoundException | SQLException | RuntimeException e) {
+                        System.out.println("something went wrong (" + e.getMessage() + ") - will go to sleep anyway");
+                        // intentionally non-fatal
+                    }
+
+                    System.out.println(ZonedDateTime.now() + " A22TrafficConnector follow mode: going to sleep");
                 
-                try {
-                    Thread.sleep(30000); // sleep 30 seconds
-                } catch (InterruptedException e) {
-                }
+                    try {
+                        Thread.sleep(30000); // sleep 30 seconds
+                    } catch (InterruptedException e) {
+                    }
                 
-            }
-
-        } else {
+                }
 
-            // perform the requested bulk operation (arguments "month" or "interval")
-            // in multiple threads and exit when ready
-            // connect to A22 web service
-            Connector conn = new Connector(a22_url, a22_auth_json);
+            } else if (backfill) {
 
-            int thread_count = 8;
-            int i;
-            long delta = (epoch_end - epoch_start) / thread_count;
-            long first, last;
+                // find and repair gaps in the given interval (argument "backfill")
+                Connector conn = new Connector(a22_url, a22_auth_json);
+                Backfill.shared().runInterval(conn, jdbc_url, epoch_start, epoch_end);
+                conn.close();
 
-            // prepare an hashmap for each thread to yield min and max timestamps
-            List<Map<String, long[]>> threadResults = new ArrayList<>();
-            for (int j = 0; j < thread_count; j++) {
-                threadResults.add(new HashMap<>());
-            }
+            } else {
 
-            Runnable bulkloader[] = new Runnable[thread_count];
-            Thread thread[] = new Thread[thread_count];
-            for (i = 0; i < thread_count; i++) {
-                first = epoch_start + i * delta;
-                if (i < thread_count - 1) {
-                    last = epoch_start + i * delta + delta - 1;
-                } else {
-                    last = epoch_end;
-                }
-                bulkloader[i] = new BulkLoader(i, jdbc_url, conn, first, last, threadResults.get(i));
-                thread[i] = new Thread(bulkloader[i]);
-                thread[i].start();
-            }
+                // perform the requested bulk operation (arguments "month" or "interval")
+                // on a work-stealing pool and exit when ready
+                // connect to A22 web service
+                Connector conn = new Connector(a22_url, a22_auth_json);
 
-            for (i = 0; i < thread_count; i++) {
-                thread[i].join();
-            }
+                int parallelism = Config.getInt("A22_BULK_PARALLELISM", 8);
+                BulkLoader bulkloader = new BulkLoader(jdbc_url, conn, epoch_start, epoch_end, parallelism);
+                Map<String, long[]> result = bulkloader.run();
 
-            // disconnect from A22 service
-            conn.close();
+                // disconnect from A22 service
+                conn.close();
 
-            // flush min and max timestamps
-            Stations.updateStationTimestampsBulk(jdbc_url, threadResults);
+                // flush min and max timestamps
+                Stations.updateStationTimestamps(jdbc_url, result);
+            }
+        } finally {
+            // the metrics server thread would keep the JVM running
+            Metrics.stop();
         }
 
         System.out.println("A22TrafficConnector exited at " + ZonedDateTime.now());
@@ -0,0 +1,245 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A22 traffic API connector: process wide metrics, served in the Prometheus text
+ * format on http://host:A22_METRICS_PORT/metrics (not served if the port is 0).
+ *
+ * Metrics are created once, as static fields of the classes that update them, and
+ * updating them only touches LongAdder/DoubleAdder instances, so it is cheap enough
+ * for the per-request and per-batch paths. Rates (events/s, requests/s) are left to
+ * the scraper, e.g. rate(a22_pipeline_events_stored_total[5m]).
+ */
+public class Metrics {
+
+    private static final double[] LATENCY_BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+    private static final Map<String, Metric> registry = new ConcurrentSkipListMap<>();
+    private static HttpServer server;
+
+    private abstract static class Metric {
+        final String name;
+        final String help;
+        final String label; // name of the only label, or null
+
+        Metric(String name, String help, String label) {
+            this.name = name;
+            this.help = help;
+            this.label = label;
+        }
+
+        abstract String type();
+
+        abstract void write(StringBuilder sb);
+
+        String series(String value) {
+            if (label == null) {
+                return name;
+            }
+            return name + "{" + label + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"}";
+        }
+    }
+
+    /**
+     * Monotonic counter, optionally with one label.
+     */
+    public static class Counter extends Metric {
+        private final Map<String, LongAdder> values = new ConcurrentHashMap<>();
+
+        Counter(String name, String help, String label) {
+            super(name, help, label);
+        }
+
+        public void inc() {
+            add("", 1);
+        }
+
+        public void inc(String label_value) {
+            add(label_value, 1);
+        }
+
+        public void add(String label_value, long n) {
+            values.computeIfAbsent(label_value, k -> new LongAdder()).add(n);
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void write(StringBuilder sb) {
+            for (Map.Entry<String, LongAdder> e : values.entrySet()) {
+                sb.append(series(e.getKey())).append(' ').append(e.getValue().sum()).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Gauge, optionally with one label. Values are read when scraped.
+     */
+    public static class Gauge extends Metric {
+        private final Map<String, DoubleSupplier> values = new ConcurrentHashMap<>();
+
+        Gauge(String name, String help, String label) {
+            super(name, help, label);
+        }
+
+        public void set(String label_value, DoubleSupplier value) {
+            values.put(label_value, value);
+        }
+
+        public void set(String label_value, double value) {
+            values.put(label_value, () -> value);
+        }
+
+        public void remove(String label_value) {
+            values.remove(label_value);
+        }
+
+        @Override
+        String type() {
+            return "gauge";
+        }
+
+        @Override
+        void write(StringBuilder sb) {
+            for (Map.Entry<String, DoubleSupplier> e : values.entrySet()) {
+                sb.append(series(e.getKey())).append(' ').append(e.getValue().getAsDouble()).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Latency histogram in seconds (fixed buckets from 5 ms to 60 s).
+     */
+    public static class Histogram extends Metric {
+        private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length];
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(String name, String help) {
+            super(name, help, null);
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observeMillis(long ms) {
+            double sec = ms / 1000.0;
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                if (sec <= LATENCY_BUCKETS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(sec);
+        }
+
+        @Override
+        String type() {
+            return "histogram";
+        }
+
+        @Override
+        void write(StringBuilder sb) {
+            long cumulative = 0;
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                cumulative += buckets[i].sum();
+                sb.append(name).append("_bucket{le=\"").append(LATENCY_BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append(name).append("_bucket{le=\"+Inf\"} ").append(count.sum()).append('\n');
+            sb.append(name).append("_sum ").append(sum.sum()).append('\n');
+            sb.append(name).append("_count ").append(count.sum()).append('\n');
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Metric> T register(T m) {
+        Metric prev = registry.putIfAbsent(m.name, m);
+        return prev != null ? (T) prev : m;
+    }
+
+    public static Counter counter(String name, String help) {
+        return register(new Counter(name, help, null));
+    }
+
+    public static Counter counter(String name, String help, String label) {
+        return register(new Counter(name, help, label));
+    }
+
+    public static Gauge gauge(String name, String help, String label) {
+        return register(new Gauge(name, help, label));
+    }
+
+    public static Histogram histogram(String name, String help) {
+        return register(new Histogram(name, help));
+    }
+
+    /**
+     * @return all metrics in the Prometheus text format
+     */
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder();
+        for (Metric m : registry.values()) {
+            sb.append("# HELP ").append(m.name).append(' ').append(m.help).append('\n');
+            sb.append("# TYPE ").append(m.name).append(' ').append(m.type()).append('\n');
+            m.write(sb);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Serve the metrics on A22_METRICS_PORT, unless it is 0 or they are served already.
+     */
+    public static synchronized void start() throws IOException {
+        int port = Config.getInt("A22_METRICS_PORT", 0);
+        if (port == 0 || server != null) {
+            return;
+        }
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        System.out.println("metrics: serving on port " + port + ", path /metrics");
+    }
+
+    /**
+     * Stop serving the metrics (the server thread would keep the JVM running).
+     */
+    public static synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+}
@@ -0,0 +1,28 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.io.IOException;
+
+/**
+ * A22 traffic API connector: the events of a coil and time window could not be
+ * retrieved (as opposed to the window having no events). The request can be
+ * repeated later.
+ */
+public class NotRetrievedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The HTTP response status, 0 if there was no response.
+     */
+    public final int status;
+
+    public NotRetrievedException(String coilid, String reason, int status, Throwable cause) {
+        super("events of coil " + coilid + " not retrieved: " + reason, cause);
+        this.status = status;
+    }
+
+}
@@ -0,0 +1,271 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A22 traffic API connector: range partitions of a22.a22_traffic on "timestamp"
+ * (see a22db.migration-4.sql).
+ *
+ * Knows the partitions and their bounds, creates the missing ones (one per period,
+ * A22_PARTITION_INTERVAL: month, week or day, in UTC) and writes batches straight
+ * into the partition their events belong to, bypassing tuple routing.
+ *
+ * For bulk loads, a period can also be loaded into a detached table that is only
+ * attached as a partition when complete, so the indexes of the live table are not
+ * maintained row by row (prepareDetached() and attachDetached()).
+ *
+ * If a22.a22_traffic is not partitioned, everything is written into it as before.
+ *
+ * Instances are set up by a single thread and are then safe to share with the
+ * pipeline's writer threads, as long as they are no longer modified.
+ */
+public class Partitions {
+
+    private static final Pattern BOUND = Pattern.compile("FOR VALUES FROM \\(([^)]+)\\) TO \\(([^)]+)\\)");
+    private static final DateTimeFormatter NAME = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private static class Range {
+        final long lo;
+        final long hi; // exclusive
+        final String table;
+        final boolean detached;
+
+        Range(long lo, long hi, String table, boolean detached) {
+            this.lo = lo;
+            this.hi = hi;
+            this.table = table;
+            this.detached = detached;
+        }
+    }
+
+    private final boolean partitioned;
+    private final String interval;
+    private final TreeMap<Long, Range> ranges = new TreeMap<>();
+
+    private Partitions(boolean partitioned) {
+        this.partitioned = partitioned;
+        this.interval = Config.getString("A22_PARTITION_INTERVAL", "month");
+        if (!interval.equals("month") && !interval.equals("week") && !interval.equals("day")) {
+            throw new RuntimeException("invalid value for A22_PARTITION_INTERVAL: '" + interval + "' (expected month, week or day)");
+        }
+    }
+
+    /**
+     * Read the partitions of a22.a22_traffic.
+     */
+    public static Partitions load(Connection db) throws SQLException {
+        Statement stm = db.createStatement();
+        ResultSet rs = stm.executeQuery("select relkind = 'p' from pg_class where oid = '" + TrafficWriter.TABLE + "'::regclass");
+        boolean partitioned = rs.next() && rs.getBoolean(1);
+        rs.close();
+        Partitions p = new Partitions(partitioned);
+        if (partitioned) {
+            rs = stm.executeQuery("select n.nspname || '.' || c.relname, pg_get_expr(c.relpartbound, c.oid) "
+                    + "from pg_inherits i join pg_class c on c.oid = i.inhrelid join pg_namespace n on n.oid = c.relnamespace "
+                    + "where i.inhparent = '" + TrafficWriter.TABLE + "'::regclass");
+            while (rs.next()) {
+                Matcher m = BOUND.matcher(rs.getString(2));
+                if (m.matches()) {
+                    long lo = bound(m.group(1));
+                    p.ranges.put(lo, new Range(lo, bound(m.group(2)), rs.getString(1), false));
+                }
+                // a default partition has no bounds, its rows are routed by the parent
+            }
+            rs.close();
+        }
+        stm.close();
+        return p;
+    }
+
+    private static long bound(String s) {
+        s = s.trim();
+        if (s.equals("MINVALUE")) {
+            return Long.MIN_VALUE;
+        }
+        if (s.equals("MAXVALUE")) {
+            return Long.MAX_VALUE;
+        }
+        return Long.parseLong(s.replace("'", ""));
+    }
+
+    public boolean isPartitioned() {
+        return partitioned;
+    }
+
+    /**
+     * @return the bounds { lo, hi } (hi exclusive) of the period containing ts
+     */
+    public long[] period(long ts) {
+        ZonedDateTime t = ZonedDateTime.ofInstant(Instant.ofEpochSecond(ts), ZoneOffset.UTC).truncatedTo(ChronoUnit.DAYS);
+        ZonedDateTime lo;
+        ZonedDateTime hi;
+        switch (interval) {
+            case "day":
+                lo = t;
+                hi = t.plusDays(1);
+                break;
+            case "week":
+                lo = t.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+                hi = lo.plusWeeks(1);
+                break;
+            default:
+                lo = t.withDayOfMonth(1);
+                hi = lo.plusMonths(1);
+        }
+        return new long[] { lo.toEpochSecond(), hi.toEpochSecond() };
+    }
+
+    private static String name(long lo) {
+        return TrafficWriter.TABLE + "_" + NAME.format(ZonedDateTime.ofInstant(Instant.ofEpochSecond(lo), ZoneOffset.UTC));
+    }
+
+    private Range containing(long ts) {
+        Map.Entry<Long, Range> e = ranges.floorEntry(ts);
+        return e != null && ts < e.getValue().hi ? e.getValue() : null;
+    }
+
+    /**
+     * Create the partitions needed to store timestamps fr .. to (inclusive), where
+     * no partition exists yet. Commits.
+     */
+    public void ensure(Connection db, long fr, long to) throws SQLException {
+        if (!partitioned) {
+            return;
+        }
+        long cur = period(fr)[0];
+        while (cur <= to) {
+            Range r = containing(cur);
+            if (r != null) {
+                cur = r.hi;
+                continue;
+            }
+            // up to the end of the period or the start of the next existing partition
+            long hi = period(cur)[1];
+            Long next = ranges.higherKey(cur);
+            if (next != null && next < hi) {
+                hi = next;
+            }
+            String table = name(cur);
+            Statement stm = db.createStatement();
+            stm.execute("create table if not exists " + table + " partition of " + TrafficWriter.TABLE + " for values from (" + cur + ") to (" + hi + ")");
+            stm.close();
+            db.commit();
+            ranges.put(cur, new Range(cur, hi, table, false));
+            System.out.println("partitions: created " + table + " for " + cur + " .. " + (hi - 1));
+            cur = hi;
+        }
+    }
+
+    /**
+     * Write the batch into the partitions its events belong to.
+     */
+    public void write(TrafficWriter writer, Connection db, TransitBatch batch) throws SQLException, IOException {
+        if (!partitioned || batch.isEmpty()) {
+            writer.write(db, batch, TrafficWriter.TABLE);
+            return;
+        }
+        // normally all events of a window fall into the same partition
+        Range first = containing(batch.timestamp(0));
+        boolean same = true;
+        for (int i = 1; i < batch.size() && same; i++) {
+            same = containing(batch.timestamp(i)) == first;
+        }
+        if (same) {
+            writer.write(db, batch, first != null ? first.table : TrafficWriter.TABLE);
+            return;
+        }
+        Map<String, TransitBatch> split = new LinkedHashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            Range r = containing(batch.timestamp(i));
+            split.computeIfAbsent(r != null ? r.table : TrafficWriter.TABLE, k -> new TransitBatch()).add(batch, i);
+        }
+        for (Map.Entry<String, TransitBatch> e : split.entrySet()) {
+            writer.write(db, e.getValue(), e.getKey());
+        }
+    }
+
+    /**
+     * Prepare a detached table for the period starting at lo, to be filled and then
+     * attached by attachDetached(). A detached table left over by an earlier run
+     * is reused. Commits.
+     *
+     * @return false if the period is already covered by a partition (or the table
+     *         is not partitioned), in that case ensure() should be used instead
+     */
+    public boolean prepareDetached(Connection db, long lo) throws SQLException {
+        long hi = period(lo)[1];
+        if (!partitioned || containing(lo) != null || (ranges.higherKey(lo) != null && ranges.higherKey(lo) < hi)) {
+            return false;
+        }
+        String table = name(lo);
+        Statement stm = db.createStatement();
+        stm.execute("create table if not exists " + table + " (like " + TrafficWriter.TABLE + " including defaults)");
+        if (IdempotentTrafficWriter.enabled()) {
+            // on conflict do nothing needs the unique index on the target table
+            stm.execute("create unique index if not exists " + table.substring(table.indexOf('.') + 1) + "_natural_key_ux on " + table
+                    + " (stationcode, \"timestamp\", distance, headway, length, speed, class, direction)");
+        }
+        stm.close();
+        db.commit();
+        ranges.put(lo, new Range(lo, hi, table, true));
+        System.out.println("partitions: loading " + table + " detached for " + lo + " .. " + (hi - 1));
+        return true;
+    }
+
+    /**
+     * Attach all tables prepared by prepareDetached() as partitions. The indexes of
+     * a22.a22_traffic are built on each table as a whole while attaching. Commits.
+     */
+    public void attachDetached(Connection db) throws SQLException {
+        for (Range r : ranges.values()) {
+            if (!r.detached) {
+                continue;
+            }
+            long t0 = System.currentTimeMillis();
+            String constraint = r.table.substring(r.table.indexOf('.') + 1) + "_range";
+            Statement stm = db.createStatement();
+            // with a matching check constraint in place, attaching does not need to scan the table
+            stm.execute("alter table " + r.table + " add constraint " + constraint
+                    + " check (\"timestamp\" is not null and \"timestamp\" >= " + r.lo + " and \"timestamp\" < " + r.hi + ")");
+            stm.execute("alter table " + TrafficWriter.TABLE + " attach partition " + r.table + " for values from (" + r.lo + ") to (" + r.hi + ")");
+            stm.execute("alter table " + r.table + " drop constraint " + constraint);
+            stm.close();
+            db.commit();
+            ranges.put(r.lo, new Range(r.lo, r.hi, r.table, false));
+            System.out.println("partitions: attached " + r.table + " in " + (System.currentTimeMillis() - t0) + " ms");
+        }
+    }
+
+    /**
+     * @return true if a table prepared by prepareDetached() has not been attached yet
+     */
+    public boolean hasDetached() {
+        for (Range r : ranges.values()) {
+            if (r.detached) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,389 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A22 traffic API connector: fetch/store pipeline.
+ *
+ * Fetcher threads (owned by the caller) put the event batches they retrieved into
+ * bounded queues, a separate pool of writer threads stores them into the database.
+ * That way retrieving the next window overlaps with storing the previous one,
+ * while a full queue blocks the fetchers (backpressure), bounding memory use.
+ *
+ * Items of the same coil always go to the same writer, so they are stored and
+ * committed in the order they were put.
+ *
+ * An item can carry a checkpoint scope: its coil's checkpoint in that scope is then
+ * advanced to the end of the item's window in the same transaction as its events
+ * (see Checkpoints), by the last item if the window comes in chunks. Once an item with a checkpoint has failed, the following items
+ * of the same coil and scope are failed too without being stored, so a checkpoint
+ * never moves past a window that is missing.
+ *
+ * With A22_IDEMPOTENT, events already stored by a recent item of the same coil are
+ * dropped before writing (see RecentKeys).
+ *
+ * With A22_SPOOL_DIR, an item that cannot be stored because the database is
+ * unavailable is appended to the local spool instead and counts as stored; so do
+ * all following items, to keep each coil's items in order (see Spool).
+ */
+public class Pipeline {
+
+    /**
+     * The events retrieved for one coil and time window, or a chunk of them. Each item
+     * is stored in its own transaction.
+     */
+    public static class Item {
+
+        public final String scope;
+        public final String coil;
+        public final long fr;
+        public final long to;
+        public final TransitBatch batch;
+        public final boolean last;
+        public final long replace_to;
+
+        public Item(String coil, long fr, long to, TransitBatch batch) {
+            this(null, coil, fr, to, batch);
+        }
+
+        /**
+         * @param scope the checkpoint scope to advance to "to" when the item is stored, or null
+         */
+        public Item(String scope, String coil, long fr, long to, TransitBatch batch) {
+            this(scope, coil, fr, to, batch, true, 0);
+        }
+
+        /**
+         * @param last       false for the chunks of a window but the last one, which do
+         *                   not advance the checkpoint
+         * @param replace_to if not before fr, the events of the coil stored from fr to
+         *                   replace_to are deleted first (chunks of an earlier attempt
+         *                   at the window, which failed halfway)
+         */
+        public Item(String scope, String coil, long fr, long to, TransitBatch batch, boolean last, long replace_to) {
+            this.scope = scope;
+            this.coil = coil;
+            this.fr = fr;
+            this.to = to;
+            this.batch = batch;
+            this.last = last;
+            this.replace_to = replace_to;
+        }
+    }
+
+    /**
+     * Callbacks invoked from the writer threads.
+     */
+    public interface Listener {
+
+        /**
+         * The item has been committed.
+         */
+        void stored(Item item, long store_ms);
+
+        /**
+         * The item could not be stored (its transaction was rolled back).
+         */
+        void failed(Item item, Exception e);
+    }
+
+    private static final Item STOP = new Item(null, 0, 0, null);
+
+    private static final Metrics.Histogram store_seconds = Metrics.histogram("a22_pipeline_store_seconds", "Time to store and commit one retrieved batch");
+    private static final Metrics.Counter events_fetched = Metrics.counter("a22_pipeline_events_fetched_total", "Events handed to the writer threads", "pipeline");
+    private static final Metrics.Counter events_stored = Metrics.counter("a22_pipeline_events_stored_total", "Events committed by the writer threads", "pipeline");
+    private static final Metrics.Counter events_dropped = Metrics.counter("a22_pipeline_duplicates_dropped_total", "Retrieved events dropped as already stored (A22_IDEMPOTENT)", "pipeline");
+    private static final Metrics.Counter store_failures = Metrics.counter("a22_pipeline_store_failures_total", "Batches that could not be stored", "pipeline");
+    private static final Metrics.Gauge queue_depth = Metrics.gauge("a22_pipeline_queue_depth", "Batches waiting to be stored", "pipeline");
+    private static final Metrics.Gauge coil_lag = Metrics.gauge("a22_coil_lag_seconds", "Seconds since the last timestamp stored for the coil in follow mode", "coil");
+
+    private final String name;
+    private final String jdbc_url;
+    private final String[] countries;
+    private final Partitions partitions;
+    private final Listener listener;
+    private final List<BlockingQueue<Item>> queues;
+    private final Thread[] writers;
+    private final Set<String> broken = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService reporter;
+    private final RecentKeys recent = IdempotentTrafficWriter.enabled() ? RecentKeys.shared() : null;
+    private final Spool spool = Spool.shared().isEnabled() ? Spool.shared() : null;
+    private volatile boolean spooling = false;
+
+    // statistics
+    private final long t_start = System.currentTimeMillis();
+    private final AtomicLong fetched_items = new AtomicLong();
+    private final AtomicLong fetched_events = new AtomicLong();
+    private final AtomicLong fetch_ms = new AtomicLong();
+    private final AtomicLong stored_items = new AtomicLong();
+    private final AtomicLong stored_events = new AtomicLong();
+    private final AtomicLong store_ms = new AtomicLong();
+    private final AtomicLong failed_items = new AtomicLong();
+    private final AtomicLong dropped_events = new AtomicLong();
+    private final AtomicLong spooled_items = new AtomicLong();
+    private final AtomicInteger max_depth = new AtomicInteger();
+
+    /**
+     * Start the writer threads.
+     *
+     * @param name       used in log output
+     * @param countries  the country table built by TransitBatch.countryTable()
+     * @param partitions the partitions batches are written into, all needed
+     *                   partitions must exist
+     */
+    public Pipeline(String name, String jdbc_url, String[] countries, Partitions partitions, Listener listener) throws ClassNotFoundException {
+        Class.forName("org.postgresql.Driver");
+        this.name = name;
+        this.jdbc_url = jdbc_url;
+        this.countries = countries;
+        this.partitions = partitions;
+        this.listener = listener;
+
+        int writer_count = Config.getInt("A22_PIPELINE_WRITERS", 2);
+        int capacity = Config.getInt("A22_PIPELINE_QUEUE", 4);
+        queues = new ArrayList<>(writer_count);
+        writers = new Thread[writer_count];
+        for (int i = 0; i < writer_count; i++) {
+            final BlockingQueue<Item> queue = new ArrayBlockingQueue<>(capacity);
+            queues.add(queue);
+            writers[i] = new Thread(() -> store(queue), name + "-writer-" + i);
+            writers[i].start();
+        }
+
+        int report_sec = Config.getInt("A22_PIPELINE_REPORT_SEC", 60);
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name + "-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        if (report_sec > 0) {
+            reporter.scheduleAtFixedRate(this::report, report_sec, report_sec, TimeUnit.SECONDS);
+        }
+        queue_depth.set(name, this::depth);
+    }
+
+    /**
+     * Hand a retrieved batch to the writers, blocking while the writer's queue is full.
+     *
+     * @param fetch_ms the time spent retrieving the batch, for the statistics
+     */
+    public void put(Item item, long fetch_ms) throws InterruptedException {
+        fetched_items.incrementAndGet();
+        fetched_events.addAndGet(item.batch.size());
+        events_fetched.add(name, item.batch.size());
+        this.fetch_ms.addAndGet(fetch_ms);
+        queues.get(Math.floorMod(item.coil.hashCode(), queues.size())).put(item);
+        int depth = depth();
+        max_depth.accumulateAndGet(depth, Math::max);
+    }
+
+    /**
+     * @return true if an item of the coil with this checkpoint scope has failed, later
+     *         items would be rejected anyway, so there's no point in fetching them
+     */
+    public boolean isBroken(String scope, String coil) {
+        return broken.contains(Checkpoints.key(scope, coil));
+    }
+
+    /**
+     * Append all items to the spool without trying the database (which is known
+     * to be unavailable). Only has an effect if the spool is enabled.
+     */
+    public void spoolAll() {
+        spooling = spool != null;
+    }
+
+    /**
+     * @return the number of items waiting to be stored
+     */
+    public int depth() {
+        int depth = 0;
+        for (BlockingQueue<Item> q : queues) {
+            depth += q.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Wait until all queued items are stored and stop the writers.
+     */
+    public void close() throws InterruptedException {
+        for (BlockingQueue<Item> q : queues) {
+            q.put(STOP);
+        }
+        for (Thread t : writers) {
+            t.join();
+        }
+        reporter.shutdownNow();
+        report();
+    }
+
+    private void store(BlockingQueue<Item> queue) {
+        TrafficWriter writer = TrafficWriter.create(countries);
+        Connection db = null;
+        while (true) {
+            Item item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (item == STOP) {
+                break;
+            }
+            if (item.scope != null && isBroken(item.scope, item.coil)) {
+                failed_items.incrementAndGet();
+                store_failures.inc(name);
+                listener.failed(item, new IOException("not stored, an earlier window of coil " + item.coil + " failed"));
+                continue;
+            }
+            long t0 = System.currentTimeMillis();
+            if (spooling && spool(item, t0)) {
+                continue;
+            }
+            try {
+                if (db == null) {
+                    db = DriverManager.getConnection(jdbc_url);
+                    db.setAutoCommit(false);
+                }
+                if (recent != null) {
+                    int dropped = recent.filter(item.coil, item.batch);
+                    dropped_events.addAndGet(dropped);
+                    events_dropped.add(name, dropped);
+                }
+                if (item.replace_to >= item.fr) {
+                    replace(db, item.coil, item.fr, item.replace_to);
+                }
+                partitions.write(writer, db, item.batch);
+                if (item.scope != null && item.last) {
+                    Checkpoints.advance(db, item.scope, item.coil, item.to);
+                }
+                db.commit();
+            } catch (IOException | SQLException | RuntimeException e) {
+                db = discard(db);
+                if (spool != null && e instanceof SQLException && unavailable((SQLException) e) && spool(item, t0)) {
+                    System.out.println(name + ": database unavailable (" + e.getMessage() + "), spooling from now on");
+                    spooling = true;
+                    continue;
+                }
+                System.out.println(name + ": store failed for coil " + item.coil + " interval " + item.fr + " .. " + item.to + " (" + e.getMessage() + ")");
+                failed_items.incrementAndGet();
+                store_failures.inc(name);
+                if (item.scope != null) {
+                    broken.add(Checkpoints.key(item.scope, item.coil));
+                }
+                listener.failed(item, e);
+                continue;
+            }
+            if (recent != null) {
+                recent.remember(item.coil, item.batch);
+            }
+            long t1 = System.currentTimeMillis();
+            stored_items.incrementAndGet();
+            stored_events.addAndGet(item.batch.size());
+            store_ms.addAndGet(t1 - t0);
+            store_seconds.observeMillis(t1 - t0);
+            events_stored.add(name, item.batch.size());
+            if (Checkpoints.FOLLOW.equals(item.scope)) {
+                long last = item.to;
+                coil_lag.set(item.coil, () -> System.currentTimeMillis() / 1000 - last);
+            }
+            listener.stored(item, t1 - t0);
+        }
+        discard(db);
+    }
+
+    /**
+     * Append the item to the spool.
+     *
+     * @return false if that failed too
+     */
+    private boolean spool(Item item, long t0) {
+        try {
+            spool.append(item);
+        } catch (IOException e) {
+            System.out.println(name + ": spooling failed for coil " + item.coil + " interval " + item.fr + " .. " + item.to + " (" + e.getMessage() + ")");
+            return false;
+        }
+        spooled_items.incrementAndGet();
+        listener.stored(item, System.currentTimeMillis() - t0);
+        return true;
+    }
+
+    /**
+     * Delete the events of a coil from fr to to (inclusive), the ones stored of a
+     * window that is stored again. Does not commit.
+     */
+    static void replace(Connection db, String coil, long fr, long to) throws SQLException {
+        PreparedStatement pst = db.prepareStatement("delete from a22.a22_traffic where split_part(stationcode, ':', 2) = ? and \"timestamp\" between ? and ?");
+        pst.setString(1, coil);
+        pst.setInt(2, (int) fr);
+        pst.setInt(3, (int) to);
+        pst.executeUpdate();
+        pst.close();
+    }
+
+    /**
+     * @return true if the error means that the database cannot be reached (as
+     *         opposed to an error caused by the data)
+     */
+    static boolean unavailable(SQLException e) {
+        String state = e.getSQLState();
+        // connection exception, operator intervention (e.g. shutdown), too many connections
+        return state != null && (state.startsWith("08") || state.startsWith("57P") || state.equals("53300"));
+    }
+
+    /**
+     * Roll back and close a connection after an error, it is reopened for the next item.
+     */
+    private static Connection discard(Connection db) {
+        if (db != null) {
+            try {
+                db.rollback();
+            } catch (SQLException ignored) {
+                // the connection might be broken, we're closing it anyway
+            }
+            try {
+                db.close();
+            } catch (SQLException ignored) {
+                // idem
+            }
+        }
+        return null;
+    }
+
+    private void report() {
+        double sec = Math.max(1, System.currentTimeMillis() - t_start) / 1000.0;
+        System.out.println(ZonedDateTime.now() + " " + name + " pipeline:"
+                + " fetch " + fetched_items.get() + " batches / " + fetched_events.get() + " events"
+                + " (" + Math.round(fetched_events.get() / sec) + " events/s, " + fetch_ms.get() + " ms),"
+                + " queue depth " + depth() + " (max " + max_depth.get() + "),"
+                + " store " + stored_items.get() + " batches / " + stored_events.get() + " events"
+                + " (" + Math.round(stored_events.get() / sec) + " events/s, " + store_ms.get() + " ms),"
+                + " failed " + failed_items.get()
+                + (recent != null ? ", duplicates dropped " + dropped_events.get() : "")
+                + (spool != null ? ", spooled " + spooled_items.get() : ""));
+    }
+
+}
@@ -0,0 +1,95 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A22 traffic API connector: remembers the natural keys (see TransitBatch.key()) of
+ * the events recently stored for each coil, so that events retrieved again by
+ * overlapping windows are dropped before they reach the database.
+ *
+ * Keys are kept for A22_DEDUP_WINDOW_SEC seconds behind the newest event of the coil.
+ * The filter is only an optimization, the unique index catches whatever it misses.
+ *
+ * Calls for the same coil must not be concurrent (the pipeline stores each coil
+ * from a single writer thread), different coils can be handled concurrently.
+ */
+public class RecentKeys {
+
+    private static final RecentKeys shared = new RecentKeys(Config.getLong("A22_DEDUP_WINDOW_SEC", 900));
+
+    private static class Coil {
+        final HashSet<Long> keys = new HashSet<>();
+        final TreeMap<Long, List<Long>> by_timestamp = new TreeMap<>();
+        long newest = Long.MIN_VALUE;
+    }
+
+    private final long window;
+    private final Map<String, Coil> coils = new ConcurrentHashMap<>();
+
+    public RecentKeys(long window_sec) {
+        this.window = window_sec;
+    }
+
+    /**
+     * @return the instance shared by all pipelines (and follow iterations)
+     */
+    public static RecentKeys shared() {
+        return shared;
+    }
+
+    /**
+     * Remove the events of the batch whose key has been remembered.
+     *
+     * @return the number of events removed
+     */
+    public int filter(String coil, TransitBatch batch) {
+        Coil c = coils.get(coil);
+        if (c == null || c.keys.isEmpty()) {
+            return 0;
+        }
+        boolean[] keep = new boolean[batch.size()];
+        int dropped = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            keep[i] = !c.keys.contains(batch.key(i));
+            if (!keep[i]) {
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            batch.retain(keep);
+        }
+        return dropped;
+    }
+
+    /**
+     * Remember the keys of a batch that has been stored.
+     */
+    public void remember(String coil, TransitBatch batch) {
+        Coil c = coils.computeIfAbsent(coil, k -> new Coil());
+        for (int i = 0; i < batch.size(); i++) {
+            long key = batch.key(i);
+            if (c.keys.add(key)) {
+                c.by_timestamp.computeIfAbsent((long) batch.timestamp(i), t -> new ArrayList<>()).add(key);
+            }
+            c.newest = Math.max(c.newest, batch.timestamp(i));
+        }
+        // batches do not arrive in chronological order (bulk mode, backfill), so
+        // evict by timestamp rather than by arrival
+        Iterator<List<Long>> old = c.by_timestamp.headMap(c.newest - window).values().iterator();
+        while (old.hasNext()) {
+            c.keys.removeAll(old.next());
+            old.remove();
+        }
+    }
+
+}
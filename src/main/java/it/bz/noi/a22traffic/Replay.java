@@ -0,0 +1,246 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A22 traffic API connector: stores the responses of an archive (see Archive)
+ * again (argument "replay"), without the web service.
+ *
+ * The directory can be the archive itself or any part of it (e.g. a month). Coils
+ * are replayed in parallel (A22_REPLAY_THREADS, one per processor by default), the
+ * events handed to the writer threads of a Pipeline in batches of up to
+ * A22_REPLAY_BATCH events. No checkpoints are involved.
+ *
+ * The archived windows of a coil may overlap (idempotent overlap, windows retrieved
+ * again by backfill), so the files of a coil are read from the most recently
+ * written one and the events of seconds already covered by a more recent
+ * response are skipped: every second of a coil is taken from its latest response.
+ */
+public class Replay {
+
+    private final String jdbc_url;
+    private final Path dir;
+    private final int threads;
+    private final int batch_size = Config.getInt("A22_REPLAY_BATCH", 10000);
+
+    private final Map<String, long[]> load_result = new ConcurrentHashMap<>();
+    private final AtomicLong total_files = new AtomicLong();
+    private final AtomicLong total_events = new AtomicLong();
+    private final AtomicLong total_skipped = new AtomicLong();
+
+    public Replay(String jdbc_url, Path dir, int threads) {
+        this.jdbc_url = jdbc_url;
+        this.dir = dir;
+        this.threads = threads;
+    }
+
+    /**
+     * Replay the archive.
+     *
+     * @return the min and max timestamp loaded for each station code
+     */
+    public Map<String, long[]> run() throws IOException, ClassNotFoundException, SQLException {
+
+        System.out.println("replay mode: started at " + ZonedDateTime.now() + " (" + threads + " threads)");
+
+        String[] countries = TransitBatch.countryTable(Archive.loadCountries(dir));
+
+        // the files of each coil (the coil is the name of their directory)
+        Map<String, List<Path>> coils = new HashMap<>();
+        long min_fr = Long.MAX_VALUE;
+        long max_to = Long.MIN_VALUE;
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                Matcher m = Archive.FILE.matcher(p.getFileName().toString());
+                if (!m.matches() || !Files.isRegularFile(p)) {
+                    continue;
+                }
+                coils.computeIfAbsent(p.getParent().getFileName().toString(), k -> new ArrayList<>()).add(p);
+                min_fr = Math.min(min_fr, Long.parseLong(m.group(1)));
+                max_to = Math.max(max_to, Long.parseLong(m.group(2)));
+            }
+        }
+        if (coils.isEmpty()) {
+            System.out.println("replay mode: no archived responses found in " + dir);
+            return load_result;
+        }
+        System.out.println("replay mode: " + coils.size() + " coils, from " + min_fr + " to " + max_to);
+
+        // create the partitions needed
+        Class.forName("org.postgresql.Driver");
+        Partitions partitions;
+        try (Connection db = DriverManager.getConnection(jdbc_url)) {
+            db.setAutoCommit(false);
+            partitions = Partitions.load(db);
+            partitions.ensure(db, min_fr, max_to);
+        }
+
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Pipeline pipeline = new Pipeline("replay", jdbc_url, countries, partitions, new Pipeline.Listener() {
+            @Override
+            public void stored(Pipeline.Item item, long store_ms) {
+                TransitBatch res = item.batch;
+                for (int i = 0; i < res.size(); i++) {
+                    // min and max timestamp handling
+                    long ts = res.timestamp(i);
+                    load_result.merge(res.stationcode(i), new long[] { ts, ts }, (bounds, t) -> {
+                        bounds[0] = Math.min(bounds[0], t[0]);  // min timestamp
+                        bounds[1] = Math.max(bounds[1], t[1]);  // max timestamp
+                        return bounds;
+                    });
+                }
+            }
+
+            @Override
+            public void failed(Pipeline.Item item, Exception e) {
+                failure.compareAndSet(null, e);
+            }
+        });
+
+        long t0 = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (Map.Entry<String, List<Path>> e : coils.entrySet()) {
+            pool.execute(() -> {
+                try {
+                    replay(pipeline, e.getKey(), e.getValue());
+                } catch (IOException | RuntimeException ex) {
+                    System.out.println("replay mode: coil " + e.getKey() + " failed: " + ex);
+                    failure.compareAndSet(null, ex);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    failure.compareAndSet(null, ex);
+                }
+            });
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            pipeline.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.shutdownNow();
+            failure.compareAndSet(null, e);
+        }
+
+        long ms = Math.max(1, System.currentTimeMillis() - t0);
+        System.out.println("replay mode: " + total_files.get() + " files, " + total_events.get() + " events (" + total_events.get() * 1000 / ms + " events/s), "
+                + total_skipped.get() + " overlapping events skipped, ended at " + ZonedDateTime.now());
+
+        Exception f = failure.get();
+        if (f instanceof IOException) {
+            throw (IOException) f;
+        } else if (f instanceof SQLException) {
+            throw (SQLException) f;
+        } else if (f instanceof RuntimeException) {
+            throw (RuntimeException) f;
+        } else if (f != null) {
+            throw new RuntimeException("replay mode: failed to replay all coils", f);
+        }
+        return load_result;
+    }
+
+    /**
+     * Replay the files of a coil, most recently written first.
+     */
+    private void replay(Pipeline pipeline, String coil, List<Path> files) throws IOException, InterruptedException {
+        Map<Path, FileTime> mtime = new HashMap<>();
+        for (Path p : files) {
+            mtime.put(p, Files.getLastModifiedTime(p));
+        }
+        files.sort(Comparator.comparing(mtime::get, Collections.reverseOrder()));
+
+        TreeMap<Long, Long> covered = new TreeMap<>(); // disjoint intervals fr -> to already replayed
+        TransitBatch response = new TransitBatch();
+        TransitBatch batch = new TransitBatch(batch_size);
+        long batch_fr = Long.MAX_VALUE;
+        long batch_to = Long.MIN_VALUE;
+        for (Path p : files) {
+            Matcher m = Archive.FILE.matcher(p.getFileName().toString());
+            m.matches();
+            long fr = Long.parseLong(m.group(1));
+            long to = Long.parseLong(m.group(2));
+
+            response.clear();
+            try (InputStreamReader in = new InputStreamReader(new GZIPInputStream(Files.newInputStream(p), 65536), StandardCharsets.UTF_8)) {
+                new TransitParser(in).parse(response);
+            } catch (IOException e) {
+                throw new IOException("cannot read " + p + ": " + e.getMessage(), e);
+            }
+            total_files.incrementAndGet();
+
+            for (int i = 0; i < response.size(); i++) {
+                if (isCovered(covered, response.timestamp(i))) {
+                    total_skipped.incrementAndGet();
+                    continue;
+                }
+                batch.add(response, i);
+            }
+            cover(covered, fr, to);
+            batch_fr = Math.min(batch_fr, fr);
+            batch_to = Math.max(batch_to, to);
+
+            if (batch.size() >= batch_size) {
+                total_events.addAndGet(batch.size());
+                pipeline.put(new Pipeline.Item(null, coil, batch_fr, batch_to, batch), 0);
+                batch = new TransitBatch(batch_size);
+                batch_fr = Long.MAX_VALUE;
+                batch_to = Long.MIN_VALUE;
+            }
+        }
+        if (batch.size() > 0) {
+            total_events.addAndGet(batch.size());
+            pipeline.put(new Pipeline.Item(null, coil, batch_fr, batch_to, batch), 0);
+        }
+    }
+
+    private static boolean isCovered(TreeMap<Long, Long> covered, long ts) {
+        Map.Entry<Long, Long> e = covered.floorEntry(ts);
+        return e != null && e.getValue() >= ts;
+    }
+
+    /**
+     * Add [fr, to] to the covered intervals, merging it with those it overlaps or touches.
+     */
+    private static void cover(TreeMap<Long, Long> covered, long fr, long to) {
+        Map.Entry<Long, Long> e = covered.floorEntry(fr);
+        if (e != null && e.getValue() >= fr - 1) {
+            fr = e.getKey();
+            to = Math.max(to, e.getValue());
+        }
+        for (Map.Entry<Long, Long> n = covered.ceilingEntry(fr); n != null && n.getKey() <= to + 1; n = covered.ceilingEntry(fr)) {
+            to = Math.max(to, n.getValue());
+            covered.remove(n.getKey());
+        }
+        covered.put(fr, to);
+    }
+
+}
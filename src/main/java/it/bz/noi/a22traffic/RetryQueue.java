@@ -0,0 +1,114 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A22 traffic API connector: hands work that failed back to a pool of worker
+ * threads after a delay, instead of having the worker sleep in between.
+ *
+ * The delay of attempt n is drawn between half and all of
+ * min(A22_RETRY_MAX_DELAY_MS, A22_RETRY_BASE_DELAY_MS * 2^n) (exponential backoff
+ * with jitter, so retries of many coils failing at once are spread out). After
+ * A22_RETRY_ATTEMPTS attempts, retry() refuses and the caller gives up.
+ */
+public class RetryQueue implements AutoCloseable {
+
+    private static final Metrics.Counter scheduled = Metrics.counter("a22_retries_total", "Retries scheduled after failed windows", "queue");
+
+    private final String name;
+    private final Executor executor;
+    private final ScheduledExecutorService timer;
+    private final int max_attempts;
+    private final long base_ms;
+    private final long max_ms;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger retries = new AtomicInteger();
+
+    /**
+     * @param executor where the work is run
+     */
+    public RetryQueue(String name, Executor executor) {
+        this.name = name;
+        this.executor = executor;
+        this.max_attempts = Config.getInt("A22_RETRY_ATTEMPTS", 6);
+        this.base_ms = Config.getLong("A22_RETRY_BASE_DELAY_MS", 1000);
+        this.max_ms = Config.getLong("A22_RETRY_MAX_DELAY_MS", 60000);
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name + "-retry");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Run work on the executor now.
+     */
+    public void submit(Runnable work) {
+        outstanding.incrementAndGet();
+        executor.execute(() -> run(work));
+    }
+
+    /**
+     * Run work on the executor after the backoff delay for the given attempt
+     * (or after min_delay_ms, if that is longer).
+     *
+     * @param attempt number of attempts that failed so far
+     *
+     * @return false if there are no attempts left, the work is not scheduled
+     */
+    public boolean retry(int attempt, long min_delay_ms, Runnable work) {
+        if (attempt >= max_attempts) {
+            return false;
+        }
+        long cap = Math.min(max_ms, base_ms << Math.min(attempt, 30));
+        long delay = Math.max(min_delay_ms, cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1));
+        outstanding.incrementAndGet();
+        retries.incrementAndGet();
+        scheduled.inc(name);
+        timer.schedule(() -> executor.execute(() -> run(work)), delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private void run(Runnable work) {
+        try {
+            work.run();
+        } finally {
+            if (outstanding.decrementAndGet() == 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until all submitted work is done, including the retries it scheduled.
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (outstanding.get() > 0) {
+            wait(1000);
+        }
+    }
+
+    /**
+     * @return the number of retries scheduled so far
+     */
+    public int retries() {
+        return retries.get();
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+}
@@ -0,0 +1,169 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A22 traffic API connector: process wide cache of the sensor list (anagrafica)
+ * and the country dictionary (nazionalita).
+ *
+ * Both are retrieved again only when the cached copy is older than
+ * A22_REGISTRY_TTL_SEC. A content hash tells whether a refresh actually brought
+ * changes: if not, the previous Snapshot (and its version) is kept, so callers
+ * can skip any work derived from the metadata by comparing versions.
+ */
+public class SensorRegistry {
+
+    /**
+     * Immutable view of the metadata, with the indexes derived from it.
+     */
+    public static class Snapshot {
+
+        public final long version;
+        private final List<HashMap<String, String>> sensors;
+        private final Map<String, String> countries;
+        private final String[] country_table;
+        private final Map<String, List<String>> coils;
+        private final byte[] hash;
+
+        private Snapshot(long version, List<HashMap<String, String>> sensors, Map<String, String> countries, byte[] hash) {
+            this.version = version;
+            this.sensors = Collections.unmodifiableList(sensors);
+            this.countries = Collections.unmodifiableMap(countries);
+            this.country_table = TransitBatch.countryTable(countries);
+            this.coils = Collections.unmodifiableMap(index(sensors));
+            this.hash = hash;
+        }
+
+        /**
+         * @return the sensors as returned by Connector.getTrafficSensors() (do not modify)
+         */
+        public List<HashMap<String, String>> sensors() {
+            return sensors;
+        }
+
+        public Map<String, String> countries() {
+            return countries;
+        }
+
+        /**
+         * @return the country table built by TransitBatch.countryTable() (do not modify)
+         */
+        public String[] countryTable() {
+            return country_table;
+        }
+
+        /**
+         * @return coil id -> station codes of its sensors, sorted by coil id
+         */
+        public Map<String, List<String>> coils() {
+            return coils;
+        }
+    }
+
+    private static final SensorRegistry shared = new SensorRegistry(Config.getLong("A22_REGISTRY_TTL_SEC", 600));
+
+    private final long ttl_ms;
+    private volatile Snapshot snapshot;
+    private volatile long fetched_at;
+
+    public SensorRegistry(long ttl_sec) {
+        this.ttl_ms = ttl_sec * 1000;
+    }
+
+    /**
+     * @return the instance shared by all threads and follow iterations
+     */
+    public static SensorRegistry shared() {
+        return shared;
+    }
+
+    /**
+     * @return the cached metadata, retrieved through conn first if it is missing
+     *         or older than the TTL
+     */
+    public Snapshot get(Connector conn) throws IOException {
+        Snapshot s = snapshot;
+        if (s != null && System.currentTimeMillis() - fetched_at < ttl_ms) {
+            return s;
+        }
+        return refresh(conn);
+    }
+
+    private synchronized Snapshot refresh(Connector conn) throws IOException {
+        // another thread might have refreshed while we were waiting
+        if (snapshot != null && System.currentTimeMillis() - fetched_at < ttl_ms) {
+            return snapshot;
+        }
+        ArrayList<HashMap<String, String>> sensors = conn.getTrafficSensors();
+        Map<String, String> countries = conn.getCountries();
+        byte[] hash = hash(sensors, countries);
+        if (snapshot == null || !Arrays.equals(snapshot.hash, hash)) {
+            long version = snapshot == null ? 1 : snapshot.version + 1;
+            snapshot = new Snapshot(version, sensors, countries, hash);
+            System.out.println("sensor registry: version " + version + ", " + sensors.size() + " sensors, " + snapshot.coils.size() + " coils, " + countries.size() + " countries");
+        }
+        fetched_at = System.currentTimeMillis();
+        return snapshot;
+    }
+
+    /**
+     * Group the station codes (A22:coilid:sensorid) by coil id, skipping malformed ones.
+     */
+    public static Map<String, List<String>> index(List<HashMap<String, String>> sensors) {
+        TreeMap<String, List<String>> coils = new TreeMap<>();
+        for (HashMap<String, String> sensor : sensors) {
+            String stationcode = sensor.get("stationcode");
+            String split[] = stationcode.split(":");
+            if (split.length != 3) {
+                System.out.println("skipping wrong format station code: " + stationcode);
+                continue;
+            }
+            coils.computeIfAbsent(split[1], k -> new ArrayList<>()).add(stationcode);
+        }
+        for (Map.Entry<String, List<String>> e : coils.entrySet()) {
+            e.setValue(Collections.unmodifiableList(e.getValue()));
+        }
+        return coils;
+    }
+
+    private static byte[] hash(List<HashMap<String, String>> sensors, Map<String, String> countries) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        for (HashMap<String, String> sensor : sensors) {
+            for (String key : new String[] { "stationcode", "name", "pointprojection", "raw_metadata" }) {
+                update(md, sensor.get(key));
+            }
+        }
+        for (Map.Entry<String, String> e : new TreeMap<>(countries).entrySet()) {
+            update(md, e.getKey());
+            update(md, e.getValue());
+        }
+        return md.digest();
+    }
+
+    private static void update(MessageDigest md, String s) {
+        if (s != null) {
+            md.update(s.getBytes(StandardCharsets.UTF_8));
+        }
+        md.update((byte) 0);
+    }
+
+}
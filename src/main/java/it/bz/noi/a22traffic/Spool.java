@@ -0,0 +1,466 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A22 traffic API connector: local spool for retrieved windows that could not be
+ * stored because the database is unavailable (A22_SPOOL_DIR, disabled if not set).
+ *
+ * Windows (checkpoint scope, coil, interval and events) are appended to segment
+ * files of A22_SPOOL_SEGMENT_MB megabytes, memory-mapped and forced to disk after
+ * each append. Each record carries its length and a CRC32, so a record torn by a
+ * crash is detected and ends the segment.
+ *
+ * drain() stores the spooled windows in order, each in one transaction with its
+ * checkpoint, like the pipeline does. A record is acknowledged by moving the read
+ * position in the segment header after the commit; if the process dies in between,
+ * the record is skipped on the next drain because its checkpoint has already
+ * reached the end of its interval (except for the chunks of a window before its
+ * last, stored again unless A22_IDEMPOTENT). Segments are deleted when fully drained.
+ *
+ * Errors meaning that the database is unavailable, and errors of the schema or
+ * configuration (missing table or index), stop a drain. A record that cannot be
+ * decoded or whose data is refused (SQL states 22 and 23) is appended to
+ * rejected.spool in the spool directory and the drain goes on with the next one;
+ * the following records of the same coil and checkpoint scope are appended there
+ * too, so the checkpoint never moves past the rejected window. rejected.spool is a
+ * segment itself: with A22_SPOOL_RETRY_REJECTED it is drained again (first) by
+ * the next process, as if renamed to spool-000000000000.seg.
+ *
+ * Segment layout: magic, version, read position (ints), then records
+ * { int length, int crc, payload }, a length of 0 marks the end.
+ */
+public class Spool {
+
+    private static final int MAGIC = 0x41323253; // "A22S"
+    private static final int VERSION = 2;
+    private static final int HEADER = 16;
+    private static final int READ_POS = 8;
+    private static final String REJECTED = "rejected.spool";
+    private static final String RETRIED = "spool-000000000000.seg"; // before any appended segment
+
+    private static final Spool shared = new Spool(Config.getString("A22_SPOOL_DIR", ""), Config.getInt("A22_SPOOL_SEGMENT_MB", 64));
+
+    private static class Segment {
+        final File file;
+        final MappedByteBuffer buf;
+        int write_pos;
+
+        Segment(File file, MappedByteBuffer buf, int write_pos) {
+            this.file = file;
+            this.buf = buf;
+            this.write_pos = write_pos;
+        }
+    }
+
+    private final File dir;
+    private final int segment_size;
+    private final boolean retry_rejected = Config.getBoolean("A22_SPOOL_RETRY_REJECTED", false);
+    private final List<Segment> segments = new ArrayList<>(); // guarded by this, oldest first
+    private long next_seq = 0;
+    private long spooled = 0;
+
+    /**
+     * @param dir the spool directory, empty to disable spooling
+     */
+    public Spool(String dir, int segment_mb) {
+        this.dir = dir.isEmpty() ? null : new File(dir);
+        this.segment_size = segment_mb << 20;
+    }
+
+    /**
+     * @return the instance shared by all pipelines (and follow iterations)
+     */
+    public static Spool shared() {
+        return shared;
+    }
+
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    /**
+     * Open the segments left by an earlier process, once.
+     */
+    private void open() throws IOException {
+        if (next_seq > 0) {
+            return;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create spool directory " + dir);
+        }
+        File rejected = new File(dir, REJECTED);
+        if (retry_rejected && rejected.isFile()) {
+            File retried = new File(dir, RETRIED);
+            if (retried.exists()) {
+                System.out.println("spool: " + REJECTED + " not retried, " + RETRIED + " is still pending");
+            } else if (rejected.renameTo(retried)) {
+                System.out.println("spool: retrying the windows rejected earlier (" + REJECTED + " renamed to " + RETRIED + ")");
+            } else {
+                throw new IOException("cannot rename " + rejected + " to " + retried);
+            }
+        }
+        File[] files = dir.listFiles((d, name) -> name.matches("spool-\\d{12}\\.seg"));
+        Arrays.sort(files);
+        for (File f : files) {
+            Segment s = map(f, 0);
+            if (s.buf.getInt(0) != MAGIC || s.buf.getInt(4) != VERSION) {
+                throw new IOException("not a spool segment: " + f);
+            }
+            s.write_pos = end(s.buf);
+            segments.add(s);
+            next_seq = Long.parseLong(f.getName().substring(6, 18));
+        }
+        next_seq++;
+        if (!segments.isEmpty()) {
+            System.out.println("spool: " + segments.size() + " segments found in " + dir);
+        }
+    }
+
+    private Segment map(File f, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            if (size > 0) {
+                raf.setLength(size);
+            }
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            return new Segment(f, buf, HEADER);
+        }
+    }
+
+    /**
+     * @return the end of the records of a segment, a torn record ends the segment
+     */
+    private static int end(MappedByteBuffer buf) {
+        int pos = HEADER;
+        while (pos + 8 <= buf.capacity()) {
+            int len = buf.getInt(pos);
+            if (len <= 0 || pos + 8 + len > buf.capacity() || crc(buf, pos + 8, len) != buf.getInt(pos + 4)) {
+                break;
+            }
+            pos += 8 + len;
+        }
+        return pos;
+    }
+
+    private static int crc(MappedByteBuffer buf, int pos, int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) {
+            b[i] = buf.get(pos + i);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(b);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return true if there are windows waiting to be drained
+     */
+    public synchronized boolean hasPending() throws IOException {
+        if (dir == null) {
+            return false;
+        }
+        open();
+        for (Segment s : segments) {
+            if (s.buf.getInt(READ_POS) < s.write_pos) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Append a window, durably.
+     */
+    public synchronized void append(Pipeline.Item item) throws IOException {
+        open();
+        byte[] payload = encode(item);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        Segment s = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (s == null || s.write_pos + 8 + payload.length + 8 > s.buf.capacity()) {
+            File f = new File(dir, String.format("spool-%012d.seg", next_seq++));
+            s = map(f, Math.max(segment_size, HEADER + 8 + payload.length + 8));
+            s.buf.putInt(0, MAGIC);
+            s.buf.putInt(4, VERSION);
+            s.buf.putInt(READ_POS, HEADER);
+            segments.add(s);
+        }
+        int pos = s.write_pos;
+        for (int i = 0; i < payload.length; i++) {
+            s.buf.put(pos + 8 + i, payload[i]);
+        }
+        s.buf.putInt(pos + 4, (int) crc.getValue());
+        s.buf.putInt(pos, payload.length);
+        s.buf.force();
+        s.write_pos = pos + 8 + payload.length;
+        spooled++;
+    }
+
+    /**
+     * Store all spooled windows. Stops if the database is unavailable or the schema
+     * does not fit, leaving the rest for the next call; records whose data is refused
+     * are rejected, with the following records of their coil.
+     *
+     * @param countries the country table built by TransitBatch.countryTable()
+     *
+     * @return the number of windows stored
+     */
+    public synchronized int drain(String jdbc_url, String[] countries) throws IOException, SQLException {
+        if (!hasPending()) {
+            return 0;
+        }
+        long t0 = System.currentTimeMillis();
+        int drained = 0;
+        int skipped = 0;
+        int rejected = 0;
+        long events = 0;
+        Map<String, long[]> bounds = new HashMap<>();
+        Set<String> blocked = rejectedCoils(); // checkpoint keys
+        TrafficWriter writer = TrafficWriter.create(countries);
+        try (Connection db = DriverManager.getConnection(jdbc_url)) {
+            db.setAutoCommit(false);
+            Partitions partitions = Partitions.load(db);
+            db.commit();
+            while (!segments.isEmpty()) {
+                Segment s = segments.get(0);
+                int pos = s.buf.getInt(READ_POS);
+                while (pos < s.write_pos) {
+                    int len = s.buf.getInt(pos);
+                    byte[] payload = new byte[len];
+                    for (int i = 0; i < len; i++) {
+                        payload[i] = s.buf.get(pos + 8 + i);
+                    }
+                    Pipeline.Item item = null;
+                    try {
+                        item = decode(payload);
+                    } catch (IOException | RuntimeException e) {
+                        reject(s, pos, payload, "cannot be decoded: " + e);
+                        rejected++;
+                    }
+                    String key = item == null || item.scope == null ? null : Checkpoints.key(item.scope, item.coil);
+                    if (key != null && blocked.contains(key)) {
+                        // storing it would move the checkpoint past the rejected window
+                        reject(s, pos, payload, "follows a rejected window of coil " + item.coil);
+                        rejected++;
+                    } else if (item != null) {
+                        try {
+                            Long cp = key == null ? null : Checkpoints.load(db, Collections.singletonList(item.scope)).get(key);
+                            if (cp != null && cp >= item.to) {
+                                skipped++; // committed before the process died
+                                db.commit();
+                            } else {
+                                partitions.ensure(db, item.fr, item.to); // commits
+                                if (item.replace_to >= item.fr) {
+                                    Pipeline.replace(db, item.coil, item.fr, item.replace_to);
+                                }
+                                partitions.write(writer, db, item.batch);
+                                if (item.scope != null && item.last) {
+                                    Checkpoints.advance(db, item.scope, item.coil, item.to);
+                                }
+                                db.commit();
+                                drained++;
+                                events += item.batch.size();
+                                for (int i = 0; i < item.batch.size(); i++) {
+                                    long ts = item.batch.timestamp(i);
+                                    bounds.merge(item.batch.stationcode(i), new long[] { ts, ts }, (b, t) -> new long[] { Math.min(b[0], t[0]), Math.max(b[1], t[1]) });
+                                }
+                            }
+                        } catch (SQLException | RuntimeException e) {
+                            db.rollback();
+                            if (!(e instanceof SQLException) || !refused((SQLException) e)) {
+                                throw e; // database unavailable or schema not fitting, try again on the next drain
+                            }
+                            // caused by the data: must not block the other coils
+                            reject(s, pos, payload, e.toString());
+                            rejected++;
+                            if (key != null) {
+                                blocked.add(key);
+                            }
+                        }
+                    }
+                    pos += 8 + len;
+                    s.buf.putInt(READ_POS, pos);
+                    s.buf.force();
+                }
+                segments.remove(0);
+                if (!s.file.delete()) {
+                    System.out.println("spool: could not delete " + s.file);
+                }
+            }
+        } finally {
+            if (drained + skipped + rejected > 0) {
+                System.out.println("spool: " + drained + " windows / " + events + " events stored, " + skipped + " already stored, "
+                        + rejected + " rejected (see " + REJECTED + "), in " + (System.currentTimeMillis() - t0) + " ms");
+            }
+        }
+        Stations.updateStationTimestamps(jdbc_url, bounds);
+        return drained;
+    }
+
+    /**
+     * @return true if the error means that the database refuses the data (data
+     *         exception or integrity constraint violation)
+     */
+    private static boolean refused(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && (state.startsWith("22") || state.startsWith("23"));
+    }
+
+    /**
+     * @return the checkpoint keys of the records in the rejected file
+     */
+    private Set<String> rejectedCoils() throws IOException {
+        Set<String> keys = new HashSet<>();
+        File f = new File(dir, REJECTED);
+        if (!f.isFile()) {
+            return keys;
+        }
+        Segment s = map(f, 0);
+        int end = end(s.buf);
+        for (int pos = HEADER; pos < end; pos += 8 + s.buf.getInt(pos)) {
+            byte[] head = new byte[Math.min(s.buf.getInt(pos), 1024)]; // scope and coil come first
+            for (int i = 0; i < head.length; i++) {
+                head[i] = s.buf.get(pos + 8 + i);
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(head));
+            try {
+                String scope = in.readUTF();
+                String coil = in.readUTF();
+                if (!scope.isEmpty()) {
+                    keys.add(Checkpoints.key(scope, coil));
+                }
+            } catch (IOException e) {
+                // not decodable, rejected for that reason
+            }
+        }
+        if (end < f.length()) {
+            // a torn record (crash while rejecting) would hide the ones appended after it
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+                raf.setLength(end);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Move a record that cannot be stored to the rejected file (a segment, appended
+     * and forced to disk), so it can be inspected or retried and the drain goes on.
+     */
+    private void reject(Segment s, int pos, byte[] payload, String reason) throws IOException {
+        System.out.println("spool: record at " + s.file.getName() + ":" + pos + " cannot be stored, moved to " + REJECTED + " (" + reason + ")");
+        File f = new File(dir, REJECTED);
+        boolean created = !f.isFile() || f.length() == 0;
+        try (FileOutputStream out = new FileOutputStream(f, true)) {
+            DataOutputStream data = new DataOutputStream(out);
+            if (created) {
+                data.writeInt(MAGIC);
+                data.writeInt(VERSION);
+                data.writeInt(HEADER); // read position
+                data.writeInt(0);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            data.writeInt(payload.length);
+            data.writeInt((int) crc.getValue());
+            data.write(payload);
+            data.flush();
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * @return the number of windows appended by this process
+     */
+    public synchronized long spooled() {
+        return spooled;
+    }
+
+    private static byte[] encode(Pipeline.Item item) throws IOException {
+        TransitBatch b = item.batch;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + b.size() * 72);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(item.scope != null ? item.scope : "");
+        out.writeUTF(item.coil);
+        out.writeLong(item.fr);
+        out.writeLong(item.to);
+        out.writeBoolean(item.last);
+        out.writeLong(item.replace_to);
+        out.writeInt(b.size());
+        for (int i = 0; i < b.size(); i++) {
+            out.writeUTF(b.stationcode(i));
+            out.writeInt(b.timestamp(i));
+            out.writeDouble(b.distance(i));
+            out.writeDouble(b.headway(i));
+            out.writeDouble(b.length(i));
+            out.writeShort(b.axles(i));
+            out.writeBoolean(b.againstTraffic(i));
+            out.writeShort(b.vehicleClass(i));
+            out.writeDouble(b.speed(i));
+            out.writeShort(b.direction(i));
+            out.writeShort(b.country(i));
+            out.writeBoolean(b.licensePlateInitials(i) != null);
+            if (b.licensePlateInitials(i) != null) {
+                out.writeUTF(b.licensePlateInitials(i));
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Pipeline.Item decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String scope = in.readUTF();
+        scope = scope.isEmpty() ? null : scope;
+        String coil = in.readUTF();
+        long fr = in.readLong();
+        long to = in.readLong();
+        boolean last = in.readBoolean();
+        long replace_to = in.readLong();
+        int n = in.readInt();
+        TransitBatch b = new TransitBatch(n);
+        Map<String, String> strings = new HashMap<>(); // share repeated station codes and plates
+        for (int i = 0; i < n; i++) {
+            String stationcode = strings.computeIfAbsent(in.readUTF(), k -> k);
+            int timestamp = in.readInt();
+            double distance = in.readDouble();
+            double headway = in.readDouble();
+            double length = in.readDouble();
+            short axles = in.readShort();
+            boolean against_traffic = in.readBoolean();
+            short vehicle_class = in.readShort();
+            double speed = in.readDouble();
+            short direction = in.readShort();
+            short country = in.readShort();
+            String plate = in.readBoolean() ? strings.computeIfAbsent(in.readUTF(), k -> k) : null;
+            b.add(stationcode, timestamp, distance, headway, length, axles, against_traffic, vehicle_class, speed, direction, country, plate);
+        }
+        return new Pipeline.Item(scope, coil, fr, to, b, last, replace_to);
+    }
+
+}
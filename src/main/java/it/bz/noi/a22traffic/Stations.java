@@ -4,15 +4,95 @@
 
 package it.bz.noi.a22traffic;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 public class Stations {
 
+    /**
+     * Bring tables a22.a22_station and a22.a22_station_detail in line with the sensor
+     * list, writing only the rows that are new or differ from the stored ones (the raw
+     * metadata is compared by its md5 hash). Does not commit.
+     *
+     * @param sensors as returned by Connector.getTrafficSensors()
+     *
+     * @return the number of rows written to a22.a22_station and a22.a22_station_detail
+     */
+    public static int[] syncStations(Connection db, List<HashMap<String, String>> sensors) throws SQLException {
+        // current state: code -> { name, geo, md5(data) }
+        Map<String, String[]> stored = new HashMap<>();
+        PreparedStatement pst = db.prepareStatement(
+                "select coalesce(s.code, d.code), s.name, s.geo, md5(d.data) " +
+                "from a22.a22_station s full join a22.a22_station_detail d on d.code = s.code");
+        ResultSet rs = pst.executeQuery();
+        while (rs.next()) {
+            stored.put(rs.getString(1), new String[] { rs.getString(2), rs.getString(3), rs.getString(4) });
+        }
+        rs.close();
+        pst.close();
+
+        PreparedStatement station = db.prepareStatement("insert into a22.a22_station (code, name, geo) values (?, ?, ?) on conflict (code) " +
+                " do update set name = excluded.name, geo = excluded.geo");
+        PreparedStatement detail = db.prepareStatement("insert into a22.a22_station_detail (code, data) values (?, ?) on conflict (code) " +
+                " do update set data = excluded.data");
+        int[] written = new int[2];
+        for (HashMap<String, String> sensor : sensors) {
+            String code = sensor.get("stationcode");
+            String[] old = stored.getOrDefault(code, new String[3]);
+            if (!Objects.equals(old[0], sensor.get("name")) || !Objects.equals(old[1], sensor.get("pointprojection"))) {
+                station.setString(1, code);
+                station.setString(2, sensor.get("name"));
+                station.setString(3, sensor.get("pointprojection"));
+                station.addBatch();
+                written[0]++;
+            }
+            if (!Objects.equals(old[2], md5(sensor.get("raw_metadata")))) {
+                detail.setString(1, code);
+                detail.setString(2, sensor.get("raw_metadata"));
+                detail.addBatch();
+                written[1]++;
+            }
+        }
+        if (written[0] > 0) {
+            station.executeBatch();
+        }
+        if (written[1] > 0) {
+            detail.executeBatch();
+        }
+        station.close();
+        detail.close();
+        return written;
+    }
+
+    /**
+     * @return the same hex string as PostgreSQL's md5(), or null
+     */
+    private static String md5(String s) {
+        if (s == null) {
+            return null;
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(32);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public static void updateStationTimestampsBulk(String jdbc_url, List<Map<String, long[]>> threadResults) {
         // Step 1: Merge all thread maps into one global map
         Map<String, long[]> globalBounds = new HashMap<>();
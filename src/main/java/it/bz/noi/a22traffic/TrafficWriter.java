@@ -0,0 +1,64 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A22 traffic API connector: writes transit events into table a22.a22_traffic
+ * (or one of its partitions, see Partitions).
+ *
+ * Implementations are not thread safe, each thread should create its own writer.
+ * Writers never commit, transaction handling is up to the caller.
+ */
+public interface TrafficWriter {
+
+    String COLUMNS = "stationcode, timestamp, distance, headway, length, axles, against_traffic, class, speed, direction, country, license_plate_initials";
+
+    String TABLE = "a22.a22_traffic";
+
+    /**
+     * Write all events of the batch into the given table (a22.a22_traffic, one of its
+     * partitions or a table with the same columns) using the given DB connection.
+     */
+    void write(Connection db, TransitBatch batch, String table) throws SQLException, IOException;
+
+    /**
+     * Write all events of the batch into a22.a22_traffic.
+     */
+    default void write(Connection db, TransitBatch batch) throws SQLException, IOException {
+        write(db, batch, TABLE);
+    }
+
+    /**
+     * Create the writer selected by A22_WRITER: "copy" (default, COPY in text format),
+     * "copy-binary" (COPY in binary format) or "insert" (batched INSERT statements).
+     * With A22_IDEMPOTENT, that writer fills a staging table and events already
+     * stored are skipped (see IdempotentTrafficWriter).
+     *
+     * @param countries the country table built by TransitBatch.countryTable()
+     */
+    static TrafficWriter create(String[] countries) {
+        TrafficWriter writer;
+        String kind = Config.getString("A22_WRITER", "copy");
+        switch (kind) {
+            case "copy":
+                writer = new CopyTrafficWriter(countries, false);
+                break;
+            case "copy-binary":
+                writer = new CopyTrafficWriter(countries, true);
+                break;
+            case "insert":
+                writer = new InsertTrafficWriter(countries);
+                break;
+            default:
+                throw new RuntimeException("invalid value for A22_WRITER: '" + kind + "' (expected copy, copy-binary or insert)");
+        }
+        return IdempotentTrafficWriter.enabled() ? new IdempotentTrafficWriter(writer) : writer;
+    }
+
+}
@@ -0,0 +1,260 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A22 traffic API connector: a batch of vehicle transit events.
+ *
+ * The events are stored column by column in primitive arrays, so adding an event
+ * does not allocate anything (station codes and license plate initials are
+ * shared String instances handed in by the parser).
+ */
+public class TransitBatch {
+
+    /**
+     * Value of country(i) when the event has no nationality.
+     */
+    public static final short NO_COUNTRY = -1;
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private int size = 0;
+    private String[] stationcode;
+    private int[] timestamp;
+    private double[] distance;
+    private double[] headway;
+    private double[] length;
+    private short[] axles;
+    private boolean[] against_traffic;
+    private short[] vehicle_class;
+    private double[] speed;
+    private short[] direction;
+    private short[] country;
+    private String[] license_plate_initials;
+
+    public TransitBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TransitBatch(int capacity) {
+        capacity = Math.max(capacity, 16);
+        stationcode = new String[capacity];
+        timestamp = new int[capacity];
+        distance = new double[capacity];
+        headway = new double[capacity];
+        length = new double[capacity];
+        axles = new short[capacity];
+        against_traffic = new boolean[capacity];
+        vehicle_class = new short[capacity];
+        speed = new double[capacity];
+        direction = new short[capacity];
+        country = new short[capacity];
+        license_plate_initials = new String[capacity];
+    }
+
+    public void add(String stationcode, int timestamp, double distance, double headway, double length,
+            short axles, boolean against_traffic, short vehicle_class, double speed, short direction,
+            short country, String license_plate_initials) {
+        if (size == this.timestamp.length) {
+            grow();
+        }
+        this.stationcode[size] = stationcode;
+        this.timestamp[size] = timestamp;
+        this.distance[size] = distance;
+        this.headway[size] = headway;
+        this.length[size] = length;
+        this.axles[size] = axles;
+        this.against_traffic[size] = against_traffic;
+        this.vehicle_class[size] = vehicle_class;
+        this.speed[size] = speed;
+        this.direction[size] = direction;
+        this.country[size] = country;
+        this.license_plate_initials[size] = license_plate_initials;
+        size++;
+    }
+
+    public void addAll(TransitBatch other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other, i);
+        }
+    }
+
+    /**
+     * Append event i of the other batch.
+     */
+    public void add(TransitBatch other, int i) {
+        add(other.stationcode[i], other.timestamp[i], other.distance[i], other.headway[i], other.length[i],
+                other.axles[i], other.against_traffic[i], other.vehicle_class[i], other.speed[i],
+                other.direction[i], other.country[i], other.license_plate_initials[i]);
+    }
+
+    private void grow() {
+        int capacity = timestamp.length * 2;
+        stationcode = Arrays.copyOf(stationcode, capacity);
+        timestamp = Arrays.copyOf(timestamp, capacity);
+        distance = Arrays.copyOf(distance, capacity);
+        headway = Arrays.copyOf(headway, capacity);
+        length = Arrays.copyOf(length, capacity);
+        axles = Arrays.copyOf(axles, capacity);
+        against_traffic = Arrays.copyOf(against_traffic, capacity);
+        vehicle_class = Arrays.copyOf(vehicle_class, capacity);
+        speed = Arrays.copyOf(speed, capacity);
+        direction = Arrays.copyOf(direction, capacity);
+        country = Arrays.copyOf(country, capacity);
+        license_plate_initials = Arrays.copyOf(license_plate_initials, capacity);
+    }
+
+    /**
+     * Remove all events, keeping the allocated arrays for reuse.
+     */
+    public void clear() {
+        Arrays.fill(stationcode, 0, size, null);
+        Arrays.fill(license_plate_initials, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Remove the events i for which keep[i] is false, preserving the order of the others.
+     */
+    public void retain(boolean[] keep) {
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (!keep[i]) {
+                continue;
+            }
+            if (n != i) {
+                stationcode[n] = stationcode[i];
+                timestamp[n] = timestamp[i];
+                distance[n] = distance[i];
+                headway[n] = headway[i];
+                length[n] = length[i];
+                axles[n] = axles[i];
+                against_traffic[n] = against_traffic[i];
+                vehicle_class[n] = vehicle_class[i];
+                speed[n] = speed[i];
+                direction[n] = direction[i];
+                country[n] = country[i];
+                license_plate_initials[n] = license_plate_initials[i];
+            }
+            n++;
+        }
+        Arrays.fill(stationcode, n, size, null);
+        Arrays.fill(license_plate_initials, n, size, null);
+        size = n;
+    }
+
+    /**
+     * @return a 64 bit hash of the natural key of event i, the columns of the unique
+     *         index a22_traffic_natural_key_ux (see a22db.migration-3.sql)
+     */
+    public long key(int i) {
+        long h = stationcode[i].hashCode();
+        h = h * 0x9E3779B97F4A7C15L + timestamp[i];
+        h = h * 0x9E3779B97F4A7C15L + Double.doubleToLongBits(distance[i]);
+        h = h * 0x9E3779B97F4A7C15L + Double.doubleToLongBits(headway[i]);
+        h = h * 0x9E3779B97F4A7C15L + Double.doubleToLongBits(length[i]);
+        h = h * 0x9E3779B97F4A7C15L + Double.doubleToLongBits(speed[i]);
+        h = h * 0x9E3779B97F4A7C15L + vehicle_class[i];
+        h = h * 0x9E3779B97F4A7C15L + direction[i];
+        return h ^ (h >>> 31);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public String stationcode(int i) {
+        return stationcode[i];
+    }
+
+    public int timestamp(int i) {
+        return timestamp[i];
+    }
+
+    public double distance(int i) {
+        return distance[i];
+    }
+
+    public double headway(int i) {
+        return headway[i];
+    }
+
+    public double length(int i) {
+        return length[i];
+    }
+
+    public short axles(int i) {
+        return axles[i];
+    }
+
+    public boolean againstTraffic(int i) {
+        return against_traffic[i];
+    }
+
+    public short vehicleClass(int i) {
+        return vehicle_class[i];
+    }
+
+    public double speed(int i) {
+        return speed[i];
+    }
+
+    public short direction(int i) {
+        return direction[i];
+    }
+
+    /**
+     * @return the A22 nationality id or NO_COUNTRY
+     */
+    public short country(int i) {
+        return country[i];
+    }
+
+    /**
+     * @return the license plate initials or null if there are none
+     */
+    public String licensePlateInitials(int i) {
+        return license_plate_initials[i];
+    }
+
+    /**
+     * Turn the map returned by Connector.getCountries() into a lookup table
+     * indexed by nationality id, so country(i) can be resolved without boxing.
+     */
+    public static String[] countryTable(Map<String, String> countries) {
+        String[] table = new String[0];
+        for (Map.Entry<String, String> e : countries.entrySet()) {
+            int id;
+            try {
+                id = Integer.parseInt(e.getKey());
+            } catch (NumberFormatException ex) {
+                continue;
+            }
+            if (id < 0 || id > Short.MAX_VALUE) {
+                continue;
+            }
+            if (id >= table.length) {
+                table = Arrays.copyOf(table, id + 1);
+            }
+            table[id] = e.getValue();
+        }
+        return table;
+    }
+
+    /**
+     * Resolve a nationality id using a table built by countryTable().
+     */
+    public static String countryCode(String[] table, short id) {
+        return id >= 0 && id < table.length ? table[id] : null;
+    }
+
+}
@@ -0,0 +1,573 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * A22 traffic API connector: streaming parser for /traffico/transiti responses.
+ *
+ * The response has the form {"Traffico_GetTransitiResult":[{...},{...},...]}.
+ * Instead of building the whole document in memory (as json-simple does), the
+ * parser reads one transit event at a time and appends it to a TransitBatch.
+ *
+ * Numbers are decoded straight from the input buffer and repeated strings (keys,
+ * station codes, license plate initials) are looked up in small intern tables,
+ * so parsing an event normally does not allocate any objects.
+ */
+public class TransitParser {
+
+    private static final String RESULT_KEY = "Traffico_GetTransitiResult";
+
+    private static final int T_STRING = 1;
+    private static final int T_NUMBER = 2;
+    private static final int T_TRUE = 3;
+    private static final int T_FALSE = 4;
+    private static final int T_NULL = 5;
+
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final Reader in;
+    private final char[] buf = new char[8192];
+    private int pos = 0;
+    private int limit = 0;
+
+    // text of the last scalar read by readScalar()
+    private char[] tok = new char[64];
+    private int tok_len = 0;
+
+    // intern tables
+    private final String[] strings = new String[512];
+    private int[] station_coil = new int[16];
+    private int[] station_sensor = new int[16];
+    private String[] station_code = new String[16];
+    private int station_cnt = 0;
+
+    public TransitParser(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Parse the response, appending all events to the given batch.
+     *
+     * @return the number of events parsed
+     *
+     * @throws IOException on read errors or if the json hasn't the expected form
+     */
+    public int parse(TransitBatch batch) throws IOException {
+        return parse(batch, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * Parse the response, appending events to the given batch and handing the batch
+     * to the consumer (and clearing it afterwards) every time it reaches chunk_size
+     * events, as well as once more at the end if it is not empty.
+     *
+     * The consumer must be done with the batch when it returns, as the batch is reused.
+     *
+     * @return the number of events parsed
+     *
+     * @throws IOException on read errors or if the json hasn't the expected form
+     */
+    public int parse(TransitBatch batch, int chunk_size, Consumer<TransitBatch> consumer) throws IOException {
+        int count = 0;
+        expect('{');
+        if (peek() == '}') {
+            next();
+            return 0;
+        }
+        while (true) {
+            String key = readKey();
+            if (RESULT_KEY.equals(key) && peek() == '[') {
+                next();
+                if (peek() == ']') {
+                    next();
+                } else {
+                    while (true) {
+                        readEvent(batch);
+                        count++;
+                        if (consumer != null && batch.size() >= chunk_size) {
+                            consumer.accept(batch);
+                            batch.clear();
+                        }
+                        char c = next();
+                        if (c == ']') {
+                            break;
+                        }
+                        if (c != ',') {
+                            throw error("expected ',' or ']'", c);
+                        }
+                    }
+                }
+            } else {
+                skipValue();
+            }
+            char c = next();
+            if (c == '}') {
+                break;
+            }
+            if (c != ',') {
+                throw error("expected ',' or '}'", c);
+            }
+        }
+        if (consumer != null && !batch.isEmpty()) {
+            consumer.accept(batch);
+            batch.clear();
+        }
+        return count;
+    }
+
+    private void readEvent(TransitBatch batch) throws IOException {
+        int coil = 0;
+        int sensor = 0;
+        int timestamp = 0;
+        double distance = 0;
+        double headway = 0;
+        double length = 0;
+        short axles = 0;
+        boolean against_traffic = false;
+        short vehicle_class = 0;
+        double speed = 0;
+        short direction = 0;
+        short country = TransitBatch.NO_COUNTRY;
+        String license_plate_initials = null;
+
+        expect('{');
+        if (peek() == '}') {
+            next();
+        } else {
+            while (true) {
+                String key = readKey();
+                switch (key) {
+                    case "idspira":
+                        coil = readInt(key);
+                        break;
+                    case "idsensore":
+                        sensor = readInt(key);
+                        break;
+                    case "distanza":
+                        distance = readDouble(key);
+                        break;
+                    case "avanzamento":
+                        headway = readDouble(key);
+                        break;
+                    case "velocita":
+                        speed = readDouble(key);
+                        break;
+                    case "lunghezza":
+                        length = readDouble(key);
+                        break;
+                    case "assi":
+                        axles = (short) readInt(key);
+                        break;
+                    case "classe":
+                        vehicle_class = (short) readInt(key);
+                        break;
+                    case "direzione":
+                        direction = (short) readInt(key);
+                        break;
+                    case "idNazionalita":
+                        if (readScalar() == T_NUMBER) {
+                            country = (short) tokenToLong(key);
+                        }
+                        break;
+                    case "targaIniziali":
+                        if (readScalar() == T_STRING && tok_len > 0) {
+                            license_plate_initials = internToken();
+                        }
+                        break;
+                    case "data":
+                        timestamp = readDate(key);
+                        break;
+                    case "controsenso":
+                        against_traffic = readScalar() == T_TRUE;
+                        break;
+                    default:
+                        skipValue();
+                }
+                char c = next();
+                if (c == '}') {
+                    break;
+                }
+                if (c != ',') {
+                    throw error("expected ',' or '}'", c);
+                }
+            }
+        }
+        batch.add(stationcode(coil, sensor), timestamp, distance, headway, length, axles, against_traffic,
+                vehicle_class, speed, direction, country, license_plate_initials);
+    }
+
+    /**
+     * @return the shared station code string "A22:coil:sensor"
+     */
+    private String stationcode(int coil, int sensor) {
+        for (int i = 0; i < station_cnt; i++) {
+            if (station_coil[i] == coil && station_sensor[i] == sensor) {
+                return station_code[i];
+            }
+        }
+        if (station_cnt == station_code.length) {
+            station_coil = Arrays.copyOf(station_coil, station_cnt * 2);
+            station_sensor = Arrays.copyOf(station_sensor, station_cnt * 2);
+            station_code = Arrays.copyOf(station_code, station_cnt * 2);
+        }
+        String code = "A22:" + coil + ":" + sensor;
+        station_coil[station_cnt] = coil;
+        station_sensor[station_cnt] = sensor;
+        station_code[station_cnt] = code;
+        station_cnt++;
+        return code;
+    }
+
+    // -------------------------------------------------------------------------
+    // typed values
+
+    private int readInt(String key) throws IOException {
+        if (readScalar() != T_NUMBER) {
+            throw new IOException("expected a number for '" + key + "'");
+        }
+        return (int) tokenToLong(key);
+    }
+
+    private double readDouble(String key) throws IOException {
+        if (readScalar() != T_NUMBER) {
+            throw new IOException("expected a number for '" + key + "'");
+        }
+        return tokenToDouble();
+    }
+
+    /**
+     * Parse the timestamp out of "/Date(1540688331000+0200)/".
+     * (see the comment "Reverse engineering the A22 timestamp format" in Connector)
+     */
+    private int readDate(String key) throws IOException {
+        if (readScalar() != T_STRING || tok_len < 16) {
+            throw new IOException("expected a date for '" + key + "'");
+        }
+        int ts = 0;
+        for (int i = 6; i < 16; i++) {
+            int d = tok[i] - '0';
+            if (d < 0 || d > 9) {
+                throw new IOException("invalid date '" + new String(tok, 0, tok_len) + "'");
+            }
+            ts = ts * 10 + d;
+        }
+        return ts;
+    }
+
+    private long tokenToLong(String key) throws IOException {
+        int i = 0;
+        boolean neg = false;
+        if (tok[0] == '-') {
+            neg = true;
+            i = 1;
+        }
+        if (i == tok_len || tok_len - i > 18) {
+            throw new IOException("invalid integer '" + new String(tok, 0, tok_len) + "' for '" + key + "'");
+        }
+        long v = 0;
+        for (; i < tok_len; i++) {
+            int d = tok[i] - '0';
+            if (d < 0 || d > 9) {
+                // e.g. 2.0 - let the slow path deal with it
+                return (long) tokenToDouble();
+            }
+            v = v * 10 + d;
+        }
+        return neg ? -v : v;
+    }
+
+    /**
+     * Decode the current number token. Plain decimals with up to 15 significant
+     * digits are converted exactly with a single multiplication or division,
+     * everything else goes through Double.parseDouble().
+     */
+    private double tokenToDouble() throws IOException {
+        int i = 0;
+        boolean neg = false;
+        if (tok[0] == '-') {
+            neg = true;
+            i = 1;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean dot = false;
+        boolean fast = true;
+        for (; i < tok_len; i++) {
+            char c = tok[i];
+            if (c >= '0' && c <= '9') {
+                if (mantissa != 0 || c != '0') {
+                    digits++;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (dot) {
+                    scale++;
+                }
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else if (c == 'e' || c == 'E') {
+                int exp;
+                try {
+                    exp = Integer.parseInt(new String(tok, i + 1, tok_len - i - 1).replace("+", ""));
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid number '" + new String(tok, 0, tok_len) + "'");
+                }
+                scale -= exp;
+                break;
+            } else {
+                fast = false;
+                break;
+            }
+            if (digits > 15) {
+                fast = false;
+                break;
+            }
+        }
+        if (fast && scale >= -22 && scale <= 22) {
+            double v = scale >= 0 ? mantissa / POW10[scale] : mantissa * POW10[-scale];
+            return neg ? -v : v;
+        }
+        try {
+            return Double.parseDouble(new String(tok, 0, tok_len));
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid number '" + new String(tok, 0, tok_len) + "'");
+        }
+    }
+
+    /**
+     * @return the current token as a String, sharing instances for repeated values
+     */
+    private String internToken() {
+        int h = 0;
+        for (int i = 0; i < tok_len; i++) {
+            h = 31 * h + tok[i];
+        }
+        int slot = (h ^ (h >>> 16)) & (strings.length - 1);
+        String s = strings[slot];
+        if (s != null && s.length() == tok_len) {
+            boolean same = true;
+            for (int i = 0; i < tok_len; i++) {
+                if (s.charAt(i) != tok[i]) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same) {
+                return s;
+            }
+        }
+        s = new String(tok, 0, tok_len);
+        strings[slot] = s;
+        return s;
+    }
+
+    // -------------------------------------------------------------------------
+    // minimal JSON tokenizer
+
+    /**
+     * Read an object key and the following ':'.
+     */
+    private String readKey() throws IOException {
+        if (peek() != '"') {
+            throw error("expected '\"'", peek());
+        }
+        readScalar();
+        expect(':');
+        return internToken();
+    }
+
+    /**
+     * Read a string, number, boolean or null value into tok.
+     *
+     * @return the token type
+     */
+    private int readScalar() throws IOException {
+        char c = peek();
+        tok_len = 0;
+        if (c == '"') {
+            pos++;
+            while (true) {
+                if (pos == limit && !fill()) {
+                    throw new IOException("unexpected end of input in string");
+                }
+                c = buf[pos++];
+                if (c == '"') {
+                    return T_STRING;
+                }
+                if (c == '\\') {
+                    c = readEscape();
+                }
+                append(c);
+            }
+        }
+        if (c == '{' || c == '[') {
+            throw error("expected a scalar value", c);
+        }
+        while (true) {
+            if (pos == limit && !fill()) {
+                break;
+            }
+            c = buf[pos];
+            if (c == ',' || c == '}' || c == ']' || isWhitespace(c)) {
+                break;
+            }
+            append(c);
+            pos++;
+        }
+        if (tok_len == 0) {
+            throw error("expected a value", c);
+        }
+        switch (tok[0]) {
+            case 't':
+                return T_TRUE;
+            case 'f':
+                return T_FALSE;
+            case 'n':
+                return T_NULL;
+            default:
+                return T_NUMBER;
+        }
+    }
+
+    private void append(char c) {
+        if (tok_len == tok.length) {
+            tok = Arrays.copyOf(tok, tok_len * 2);
+        }
+        tok[tok_len++] = c;
+    }
+
+    private char readEscape() throws IOException {
+        char c = rawNext();
+        switch (c) {
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int v = 0;
+                for (int i = 0; i < 4; i++) {
+                    int d = Character.digit(rawNext(), 16);
+                    if (d < 0) {
+                        throw new IOException("invalid unicode escape");
+                    }
+                    v = (v << 4) | d;
+                }
+                return (char) v;
+            default:
+                // '"', '\\' and '/'
+                return c;
+        }
+    }
+
+    private void skipValue() throws IOException {
+        char c = peek();
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = next();
+                if (c == '"') {
+                    pos--;
+                    skipString();
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            } while (depth > 0);
+        } else {
+            readScalar();
+        }
+    }
+
+    private void skipString() throws IOException {
+        next(); // opening quote
+        while (true) {
+            char c = rawNext();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                rawNext();
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        char c = next();
+        if (c != expected) {
+            throw error("expected '" + expected + "'", c);
+        }
+    }
+
+    /**
+     * Return the next non-whitespace character without consuming it.
+     */
+    private char peek() throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) {
+                throw new IOException("unexpected end of input");
+            }
+            char c = buf[pos];
+            if (!isWhitespace(c)) {
+                return c;
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * Consume and return the next non-whitespace character.
+     */
+    private char next() throws IOException {
+        char c = peek();
+        pos++;
+        return c;
+    }
+
+    /**
+     * Consume and return the next character, whitespace included.
+     */
+    private char rawNext() throws IOException {
+        if (pos == limit && !fill()) {
+            throw new IOException("unexpected end of input");
+        }
+        return buf[pos++];
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0) {
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private static IOException error(String msg, char c) {
+        return new IOException(msg + " but found '" + c + "'");
+    }
+
+}
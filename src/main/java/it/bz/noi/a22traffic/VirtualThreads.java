@@ -0,0 +1,182 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A22 traffic API connector: executors that run each task on a virtual thread of
+ * its own (A22_VIRTUAL_THREADS), with at most A22_VIRTUAL_MAX_INFLIGHT tasks
+ * running at a time, instead of a fixed pool of platform threads.
+ *
+ * Fetching is blocking I/O, so a task spends nearly all its time waiting for the
+ * web service; on virtual threads hundreds of requests can be in flight without
+ * tuning pool sizes. The AdaptiveLimiter still decides how many requests are
+ * actually sent at once (raise A22_LIMIT_MAX to go beyond 64).
+ *
+ * Virtual threads need Java 21. The project is built for Java 8, so they are looked
+ * up by reflection; on older JVMs enabled() is false and the callers keep using
+ * their thread pools.
+ */
+public class VirtualThreads {
+
+    private static final Method factory = lookup();
+
+    private static final boolean requested = Config.getBoolean("A22_VIRTUAL_THREADS", false);
+    private static final int max_inflight = Config.getInt("A22_VIRTUAL_MAX_INFLIGHT", 256);
+
+    static {
+        if (requested && factory == null) {
+            System.out.println("virtual threads: not supported by this JVM (Java 21 or later needed), using platform threads");
+        }
+    }
+
+    private static Method lookup() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if virtual threads are requested and supported
+     */
+    public static boolean enabled() {
+        return requested && factory != null;
+    }
+
+    /**
+     * @return the maximum number of tasks running at a time
+     */
+    public static int maxInflight() {
+        return max_inflight;
+    }
+
+    /**
+     * @return an executor starting a virtual thread for each task, running at most
+     *         maxInflight() tasks at a time, in the order they were submitted
+     */
+    public static ExecutorService newExecutor() {
+        ExecutorService threads;
+        try {
+            threads = (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | NullPointerException e) {
+            throw new IllegalStateException("virtual threads not available", e);
+        }
+        return new Capped(threads, max_inflight);
+    }
+
+    /**
+     * Tasks are queued and each is started on a virtual thread of its own once
+     * fewer than max_inflight are running, strictly in the order they were
+     * submitted. Submitters never block (the retry timer submits here too).
+     */
+    private static class Capped extends AbstractExecutorService {
+
+        private final ExecutorService threads;
+        private final int max_inflight;
+        private final ReentrantLock lock = new ReentrantLock(); // not a monitor, see AdaptiveLimiter
+        private final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+        private int running = 0;
+        private volatile boolean shutdown = false;
+
+        Capped(ExecutorService threads, int max_inflight) {
+            this.threads = threads;
+            this.max_inflight = max_inflight;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            lock.lock();
+            try {
+                if (shutdown) {
+                    throw new RejectedExecutionException("executor shut down");
+                }
+                pending.add(task);
+                dispatch();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Start the queued tasks there is room for (with the lock held).
+         */
+        private void dispatch() {
+            while (running < max_inflight && !pending.isEmpty()) {
+                Runnable task = pending.poll();
+                running++;
+                threads.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        lock.lock();
+                        try {
+                            running--;
+                            dispatch();
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                });
+            }
+            if (shutdown && pending.isEmpty()) {
+                threads.shutdown();
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            lock.lock();
+            try {
+                shutdown = true;
+                dispatch();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            List<Runnable> never_started;
+            lock.lock();
+            try {
+                shutdown = true;
+                never_started = new ArrayList<>(pending);
+                pending.clear();
+            } finally {
+                lock.unlock();
+            }
+            never_started.addAll(threads.shutdownNow());
+            return never_started;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return threads.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return threads.awaitTermination(timeout, unit);
+        }
+    }
+
+}
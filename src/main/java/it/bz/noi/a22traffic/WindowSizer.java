@@ -0,0 +1,73 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package it.bz.noi.a22traffic;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A22 traffic API connector: chooses the length of the next time window to request
+ * for a coil, so that each request returns about the same number of events.
+ *
+ * The event rate of each coil is tracked as an exponentially weighted moving average
+ * of the rates observed in its previous windows. Quiet periods thus get long windows
+ * (fewer requests) and busy periods short ones (smaller responses).
+ */
+public class WindowSizer {
+
+    private static final double ALPHA = 0.5;
+
+    private final long min;
+    private final long max;
+    private final long initial;
+    private final long target;
+    private final Map<String, Double> rates = new ConcurrentHashMap<>();
+
+    /**
+     * Read the bounds and target from A22_BULK_WINDOW_MIN, A22_BULK_WINDOW_MAX,
+     * A22_BULK_WINDOW (first window of a coil) and A22_BULK_TARGET_EVENTS.
+     */
+    public WindowSizer() {
+        this(Config.getLong("A22_BULK_WINDOW_MIN", 60), Config.getLong("A22_BULK_WINDOW_MAX", 10800),
+                Config.getLong("A22_BULK_WINDOW", 1000), Config.getLong("A22_BULK_TARGET_EVENTS", 5000));
+    }
+
+    public WindowSizer(long min, long max, long initial, long target) {
+        if (min < 1 || max < min || target < 1) {
+            throw new RuntimeException("invalid window bounds: min " + min + ", max " + max + ", target " + target);
+        }
+        this.min = min;
+        this.max = max;
+        this.initial = clamp(initial);
+        this.target = target;
+    }
+
+    /**
+     * @return the length in seconds of the next window to request for the coil
+     */
+    public long next(String coil) {
+        Double rate = rates.get(coil);
+        if (rate == null) {
+            return initial;
+        }
+        if (rate <= 0) {
+            return max;
+        }
+        return clamp(Math.round(target / rate));
+    }
+
+    /**
+     * Record that a window of the given length returned the given number of events.
+     */
+    public void observe(String coil, long length, int events) {
+        double rate = (double) events / Math.max(1, length);
+        rates.merge(coil, rate, (old, r) -> ALPHA * r + (1 - ALPHA) * old);
+    }
+
+    private long clamp(long length) {
+        return Math.max(min, Math.min(max, length));
+    }
+
+}